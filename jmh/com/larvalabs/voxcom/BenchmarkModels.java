@@ -0,0 +1,29 @@
+package com.larvalabs.voxcom;
+
+import java.io.File;
+
+/**
+ * The sizes and seed shared by the benchmarks, so that each one works on the same generated models.
+ *
+ * @author John Watkinson
+ */
+class BenchmarkModels {
+
+    static final long SEED = 42;
+    static final int MODEL_VOXELS = 100000;
+    static final int SCENE_INSTANCES = 200;
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
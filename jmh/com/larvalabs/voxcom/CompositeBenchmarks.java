@@ -0,0 +1,128 @@
+package com.larvalabs.voxcom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the stages of compositing: palette merging, placing a model at each distinct orientation, scaling and
+ * clipping, on generated models.
+ *
+ * @author John Watkinson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompositeBenchmarks {
+
+    private VoxModel model;
+    private VoxModel other;
+    private VoxModel small;
+    private VoxModel scene;
+
+    @Setup
+    public void setup() {
+        SceneGenerator generator = new SceneGenerator(BenchmarkModels.SEED);
+        model = generator.generateModel(Voxcom.MAX_SIZE_VOX, BenchmarkModels.MODEL_VOXELS, 32);
+        other = generator.generateModel(Voxcom.MAX_SIZE_VOX, BenchmarkModels.MODEL_VOXELS, 32);
+        small = generator.generateModel(32, BenchmarkModels.MODEL_VOXELS / 8, 32);
+        scene = new VoxModel(1, 1, 1);
+        scene.add(model, 0, 0, 0);
+        scene.add(other, new Placement(40, 40, 0, false, false, false, true, false, false, 0, 0, 90));
+    }
+
+    /**
+     * A palette that already holds another model's colors, made fresh for each merge so that its merge index doesn't
+     * already know the model's palette.
+     */
+    @State(Scope.Thread)
+    public static class MergeTarget {
+
+        Palette palette;
+
+        @Setup(Level.Invocation)
+        public void setup(CompositeBenchmarks benchmarks) {
+            palette = new Palette();
+            palette.merge(benchmarks.other);
+        }
+
+    }
+
+    /**
+     * One placement for each of the 24 distinct orientations that rotations by multiples of 90 degrees give.
+     */
+    @State(Scope.Thread)
+    public static class Rotation {
+
+        @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11",
+                "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "23"})
+        int orientation;
+
+        Placement placement;
+
+        @Setup
+        public void setup() {
+            HashSet<Integer> orientations = new HashSet<>();
+            List<Placement> placements = new ArrayList<>();
+            for (int rx = 0; rx < 360; rx += 90) {
+                for (int ry = 0; ry < 360; ry += 90) {
+                    for (int rz = 0; rz < 360; rz += 90) {
+                        Placement placement = new Placement(63, 63, 63, true, true, true, false, false, false, rx, ry, rz);
+                        if (orientations.add(Orientation.of(placement).getIndex())) {
+                            placements.add(placement);
+                        }
+                    }
+                }
+            }
+            placement = placements.get(orientation);
+        }
+
+    }
+
+    /**
+     * A copy of the small model, made fresh for each scaling since scaling changes it.
+     */
+    @State(Scope.Thread)
+    public static class ScaleTarget {
+
+        VoxModel copy;
+
+        @Setup(Level.Invocation)
+        public void setup(CompositeBenchmarks benchmarks) {
+            copy = new VoxModel(1, 1, 1);
+            copy.add(benchmarks.small, 0, 0, 0);
+        }
+
+    }
+
+    @Benchmark
+    public int[] mergePalette(MergeTarget target) {
+        return target.palette.merge(model);
+    }
+
+    @Benchmark
+    public VoxModel add(Rotation rotation) {
+        VoxModel parent = new VoxModel(1, 1, 1);
+        parent.add(model, rotation.placement);
+        return parent;
+    }
+
+    @Benchmark
+    public VoxModel scale(ScaleTarget target) {
+        target.copy.scale(3);
+        return target.copy;
+    }
+
+    @Benchmark
+    public VoxModel clipToVoxels() {
+        scene.clipToVoxels();
+        return scene;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.larvalabs.voxcom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times reading and writing .vox files, on a generated model.
+ *
+ * @author John Watkinson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmarks {
+
+    private VoxModel model;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        model = new SceneGenerator(BenchmarkModels.SEED).generateModel(Voxcom.MAX_SIZE_VOX, BenchmarkModels.MODEL_VOXELS, 32);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VoxFormat.write(model, bytes);
+        encoded = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public VoxModel read() throws IOException {
+        return VoxFormat.read(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public Palette readPalette() throws IOException {
+        return new VoxFile(ByteBuffer.wrap(encoded)).getPalette();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingChannel channel = new CountingChannel();
+        VoxFormat.write(model, channel);
+        return channel.count;
+    }
+
+    /**
+     * Discards everything written to it, keeping a count of the bytes.
+     */
+    private static class CountingChannel implements WritableByteChannel {
+
+        long count;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            count += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.larvalabs.voxcom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times splitting a generated viewer scene into tiles. The scene's models and the tiles are written to a temporary
+ * directory, which is deleted afterwards.
+ *
+ * @author John Watkinson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileBenchmarks {
+
+    private static final int WORLD_SIZE = 1024;
+    private static final int MIN_TILE_VOXELS = 256;
+
+    private File dir;
+    private VoxModel world;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = File.createTempFile("voxcom", "");
+        dir.delete();
+        new SceneGenerator(BenchmarkModels.SEED).generateScene(dir, 4, Voxcom.MAX_SIZE_VOX, BenchmarkModels.MODEL_VOXELS, BenchmarkModels.SCENE_INSTANCES, WORLD_SIZE, true);
+        world = new VoxModel(1, 1, 1);
+        world.setMaxSize(Voxcom.MAX_SIZE_VIEWER);
+        for (int n = 0; n < BenchmarkModels.SCENE_INSTANCES; n++) {
+            VoxModel instance = VoxFormat.read(new File(dir, "model_" + (n % 4) + ".vox"));
+            world.add(instance, new Placement(n * 37 % WORLD_SIZE, n * 91 % WORLD_SIZE, 0, true, true, false, false, false, false, 0, 0, n % 4 * 90));
+        }
+        world.clipToVoxels();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkModels.delete(dir);
+    }
+
+    @Benchmark
+    public VoxModel splitIntoTiles() throws IOException {
+        world.splitIntoTiles(new File(dir, "tiles").getPath(), Voxcom.MAX_SIZE_VOX);
+        return world;
+    }
+
+    @Benchmark
+    public VoxModel splitIntoAdaptiveTiles() throws IOException {
+        world.splitIntoAdaptiveTiles(new File(dir, "adaptive").getPath(), Voxcom.MAX_SIZE_VOX, MIN_TILE_VOXELS);
+        return world;
+    }
+
+}
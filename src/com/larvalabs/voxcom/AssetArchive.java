@@ -0,0 +1,323 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single file holding a library of models, already decoded, so that scenes placing many small models don't pay to
+ * open and parse a .vox file for each. The archive is memory-mapped once, and each model's voxels are stored in the
+ * same packed form as a {@link VoxelBuffer}, so loading one is a single bulk copy out of the mapping.
+ * <p>
+ * The layout, all little-endian, is:
+ * <ul>
+ * <li>A header: the tag "VXAR", the format version, the number of models and the size of the index in bytes.</li>
+ * <li>The index, with for each model its name (a 2 byte length followed by UTF-8), its size on each axis, its number
+ * of voxels and the offsets of its palette and voxels.</li>
+ * <li>The data: for each model its palette of 256 entries (color, used flag, material type, weight, properties and
+ * material values) and then its packed voxels, aligned to 8 bytes.</li>
+ * </ul>
+ * Archives are built from a directory of .vox files with {@link #build(File, File)}, or from the command line with
+ * {@code AssetArchive <archive> <directory>}. Models are named by their path relative to that directory, with '/'
+ * between directories.
+ *
+ * @author John Watkinson
+ */
+public class AssetArchive {
+
+    private static final String TAG = "VXAR";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    // The size of an index entry after its name
+    private static final int ENTRY_SIZE = 4 * 4 + 2 * 8;
+    // The size of a palette entry before its material values
+    private static final int PALETTE_ENTRY_SIZE = 4 + 1 + 4 * 4;
+
+    private static class Entry {
+
+        int sizeX, sizeY, sizeZ;
+        int numVoxels;
+        long paletteOffset;
+        long voxelsOffset;
+
+    }
+
+    private final File file;
+    private final long lastModified;
+    private final MappedByteBuffer mapped;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Opens and maps the archive, and reads its index. The models themselves are only read when asked for.
+     */
+    public AssetArchive(File file) throws IOException {
+        this.file = file;
+        lastModified = file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Archives over 2GB aren't supported.");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid once the channel is closed
+            in.close();
+        }
+        ByteBuffer buffer = view();
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new EOFException("Archive is too short.");
+        }
+        byte[] tag = new byte[4];
+        buffer.get(tag);
+        if (!TAG.equals(new String(tag, StandardCharsets.US_ASCII))) {
+            throw new IOException("Doesn't appear to be a Voxcom archive.");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported archive version " + version + ".");
+        }
+        int numEntries = buffer.getInt();
+        int indexSize = buffer.getInt();
+        if (numEntries < 0) {
+            throw new IOException("Archive has a negative number of models.");
+        }
+        VoxFormat.require(buffer, indexSize);
+        // The index is read from a view that ends with it, so an entry running past its end is caught
+        ByteBuffer index = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        index.limit(indexSize);
+        for (int n = 0; n < numEntries; n++) {
+            VoxFormat.require(index, 2);
+            byte[] name = new byte[index.getShort() & 0xFFFF];
+            VoxFormat.require(index, name.length + ENTRY_SIZE);
+            index.get(name);
+            Entry entry = new Entry();
+            entry.sizeX = index.getInt();
+            entry.sizeY = index.getInt();
+            entry.sizeZ = index.getInt();
+            entry.numVoxels = index.getInt();
+            entry.paletteOffset = index.getLong();
+            entry.voxelsOffset = index.getLong();
+            if (entry.paletteOffset < 0 || entry.paletteOffset > mapped.capacity()) {
+                throw new EOFException("Archive palette is out of range.");
+            }
+            if (entry.numVoxels < 0 || entry.voxelsOffset < 0 || entry.voxelsOffset + 8L * entry.numVoxels > mapped.capacity()) {
+                throw new EOFException("Archive data is truncated.");
+            }
+            entries.put(new String(name, StandardCharsets.UTF_8), entry);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the modification time of the file when it was opened.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public Set<String> getNames() {
+        return entries.keySet();
+    }
+
+    /**
+     * Reads a model from the archive. It's a new model each time, so callers that want to share them should cache
+     * them, as {@link ModelCache} does.
+     *
+     * @return the model, or null if the archive doesn't contain it.
+     */
+    public VoxModel read(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer buffer = view();
+        buffer.position((int) entry.paletteOffset);
+        Palette palette = readPalette(buffer);
+        long[] voxels = new long[entry.numVoxels];
+        buffer.position((int) entry.voxelsOffset);
+        buffer.asLongBuffer().get(voxels);
+        VoxModel model = VoxModel.fromUniqueVoxels(entry.sizeX, entry.sizeY, entry.sizeZ, palette, new VoxelBuffer(voxels, voxels.length));
+        model.setMaxSize(Math.max(Math.max(entry.sizeX, entry.sizeY), Math.max(entry.sizeZ, Voxcom.MAX_SIZE_VOX)));
+        return model;
+    }
+
+    /**
+     * @return an independent view of the whole mapping, so that reads on different threads don't interfere.
+     */
+    private ByteBuffer view() {
+        return mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static Palette readPalette(ByteBuffer buffer) throws IOException {
+        Palette palette = new Palette();
+        for (int i = 0; i < 256; i++) {
+            VoxFormat.require(buffer, PALETTE_ENTRY_SIZE);
+            Material material = palette.getMaterial(i);
+            material.color = buffer.getInt();
+            material.used = buffer.get() != 0;
+            material.type = buffer.getInt();
+            material.weight = buffer.getFloat();
+            material.properties = buffer.getInt();
+            int numValues = buffer.getInt();
+            if (numValues < 0 || numValues > buffer.remaining() / 4) {
+                throw new EOFException("Palette is truncated.");
+            }
+            material.values = new float[numValues];
+            buffer.asFloatBuffer().get(material.values);
+            buffer.position(buffer.position() + 4 * numValues);
+        }
+        return palette;
+    }
+
+    /**
+     * Builds an archive holding every .vox file found in the directory and its subdirectories.
+     *
+     * @return the number of models written.
+     */
+    public static int build(File archive, File dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        findModels(dir, "", names);
+        List<VoxModel> models = new ArrayList<>();
+        for (String name : names) {
+            models.add(VoxFormat.read(new File(dir, name)));
+        }
+        write(archive, names, models);
+        return names.size();
+    }
+
+    private static void findModels(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Sorted, so that the same directory always gives the same archive
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findModels(file, prefix + file.getName() + "/", names);
+            } else if (file.getName().toLowerCase().endsWith(".vox")) {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Writes the given models to an archive under the given names.
+     */
+    public static void write(File archive, List<String> names, List<VoxModel> models) throws IOException {
+        int indexSize = 0;
+        List<byte[]> encodedNames = new ArrayList<>();
+        for (String name : names) {
+            byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+            if (encoded.length > 0xFFFF) {
+                throw new IOException("Model name is too long: " + name);
+            }
+            encodedNames.add(encoded);
+            indexSize += 2 + encoded.length + 32;
+        }
+        long[] paletteOffsets = new long[models.size()];
+        long[] voxelsOffsets = new long[models.size()];
+        long offset = HEADER_SIZE + indexSize;
+        for (int n = 0; n < models.size(); n++) {
+            paletteOffsets[n] = offset;
+            offset += getPaletteSize(models.get(n).getPalette());
+            offset = (offset + 7) & ~7L;
+            voxelsOffsets[n] = offset;
+            offset += 8L * models.get(n).getVoxels().size();
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Archives over 2GB aren't supported.");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) offset).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(TAG.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(VERSION);
+        buffer.putInt(models.size());
+        buffer.putInt(indexSize);
+        for (int n = 0; n < models.size(); n++) {
+            VoxModel model = models.get(n);
+            buffer.putShort((short) encodedNames.get(n).length);
+            buffer.put(encodedNames.get(n));
+            buffer.putInt(model.getSizeX());
+            buffer.putInt(model.getSizeY());
+            buffer.putInt(model.getSizeZ());
+            buffer.putInt(model.getVoxels().size());
+            buffer.putLong(paletteOffsets[n]);
+            buffer.putLong(voxelsOffsets[n]);
+        }
+        for (int n = 0; n < models.size(); n++) {
+            VoxModel model = models.get(n);
+            buffer.position((int) paletteOffsets[n]);
+            writePalette(buffer, model.getPalette());
+            buffer.position((int) voxelsOffsets[n]);
+            VoxelBuffer voxels = model.getVoxels();
+            for (int v = 0; v < voxels.size(); v++) {
+                buffer.putLong(voxels.get(v));
+            }
+        }
+        buffer.rewind();
+        FileOutputStream out = new FileOutputStream(archive);
+        try {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes all 256 entries of the palette, in the form read by {@link #readPalette(ByteBuffer)}.
+     */
+    static void writePalette(ByteBuffer buffer, Palette palette) {
+        for (int i = 0; i < 256; i++) {
+            Material material = palette.getMaterial(i);
+            buffer.putInt(material.color);
+            buffer.put((byte) (material.used ? 1 : 0));
+            buffer.putInt(material.type);
+            buffer.putFloat(material.weight);
+            buffer.putInt(material.properties);
+            buffer.putInt(material.values.length);
+            for (float value : material.values) {
+                buffer.putFloat(value);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes taken by the palette when written.
+     */
+    static int getPaletteSize(Palette palette) {
+        int size = 0;
+        for (int i = 0; i < 256; i++) {
+            size += 21 + 4 * palette.getMaterial(i).values.length;
+        }
+        return size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: AssetArchive <archive> <directory of .vox files>");
+            return;
+        }
+        int count = build(new File(args[0]), new File(args[1]));
+        System.out.println("Wrote " + count + " models to '" + args[0] + "'.");
+    }
+
+}
@@ -0,0 +1,222 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads and writes .vxc files, a compact intermediate form for composited scenes. Unlike .vox, coordinates may run
+ * up to {@link #MAX_COORDINATE} on each axis and the whole merged palette, materials included, is kept, so a finished
+ * scene can be saved and placed into a larger one as if it were a model, without compositing it again.
+ * <p>
+ * The layout, all little-endian, is:
+ * <ul>
+ * <li>A header: the tag "VXC ", the format version, the size of the model on each axis, its maximum size, its number
+ * of voxels and its number of bricks.</li>
+ * <li>The palette of 256 entries, as stored in an {@link AssetArchive}.</li>
+ * <li>The voxels, sorted into 16 x 16 x 16 bricks in order of Z, Y and then X. Each brick gives its coordinates and
+ * number of voxels, followed by runs of consecutive cells of the same color, each stored as the number of cells
+ * skipped since the previous run and the length of the run (both as variable-length integers) and the color index.</li>
+ * </ul>
+ * Solid regions take a few bytes per brick, and reading is a single pass that writes the packed voxels straight into
+ * the model's buffer, with no need to check for duplicates.
+ *
+ * @author John Watkinson
+ */
+public class CompositeFormat {
+
+    public static final int MAX_COORDINATE = Voxcom.MAX_SIZE_VIEWER;
+
+    private static final String TAG = "VXC ";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    // Brick coordinates are below 128, so each fits in 7 bits of the sort key
+    private static final int SORT_BRICK_BITS = 7;
+
+    public static void write(VoxModel model, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            write(model, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void write(VoxModel model, OutputStream outputStream) throws IOException {
+        VoxelBuffer voxels = model.getVoxels();
+        int numVoxels = voxels.size();
+        // Sort by brick, then by cell within the brick, carrying the color in the low byte
+        long[] sorted = new long[numVoxels];
+        for (int n = 0; n < numVoxels; n++) {
+            long voxel = voxels.get(n);
+            int x = VoxelBuffer.x(voxel);
+            int y = VoxelBuffer.y(voxel);
+            int z = VoxelBuffer.z(voxel);
+            if (x >= MAX_COORDINATE || y >= MAX_COORDINATE || z >= MAX_COORDINATE) {
+                throw new IOException("Voxel at (" + x + ", " + y + ", " + z + ") is beyond the .vxc limit of " + MAX_COORDINATE + ".");
+            }
+            long brick = (long) (z >>> VoxelIndex.BRICK_BITS) << (2 * SORT_BRICK_BITS) | (y >>> VoxelIndex.BRICK_BITS) << SORT_BRICK_BITS | (x >>> VoxelIndex.BRICK_BITS);
+            sorted[n] = (brick << 12 | VoxelIndex.cell(x, y, z)) << 8 | VoxelBuffer.i(voxel);
+        }
+        Arrays.sort(sorted);
+        int numBricks = 0;
+        for (int n = 0; n < numVoxels; n++) {
+            if (n == 0 || sorted[n] >>> 20 != sorted[n - 1] >>> 20) {
+                numBricks++;
+            }
+        }
+        // At worst each voxel is its own run of up to 5 bytes, and each brick header is 8 bytes
+        long capacity = HEADER_SIZE + AssetArchive.getPaletteSize(model.getPalette()) + 8L * numBricks + 5L * numVoxels;
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Model is too large for a .vxc file.");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) capacity).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(TAG.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(VERSION);
+        buffer.putInt(model.getSizeX());
+        buffer.putInt(model.getSizeY());
+        buffer.putInt(model.getSizeZ());
+        buffer.putInt(Math.min(model.getMaxSize(), MAX_COORDINATE));
+        buffer.putInt(numVoxels);
+        buffer.putInt(numBricks);
+        AssetArchive.writePalette(buffer, model.getPalette());
+        int n = 0;
+        while (n < numVoxels) {
+            long brick = sorted[n] >>> 20;
+            int end = n;
+            while (end < numVoxels && sorted[end] >>> 20 == brick) {
+                end++;
+            }
+            int mask = (1 << SORT_BRICK_BITS) - 1;
+            buffer.putShort((short) (brick & mask));
+            buffer.putShort((short) (brick >>> SORT_BRICK_BITS & mask));
+            buffer.putShort((short) (brick >>> (2 * SORT_BRICK_BITS)));
+            buffer.putShort((short) (end - n));
+            int next = 0;
+            while (n < end) {
+                int cell = (int) (sorted[n] >>> 8) & 0xFFF;
+                int color = (int) sorted[n] & 0xFF;
+                int length = 1;
+                while (n + length < end && (int) (sorted[n + length] >>> 8 & 0xFFF) == cell + length && ((int) sorted[n + length] & 0xFF) == color) {
+                    length++;
+                }
+                putVarInt(buffer, cell - next);
+                putVarInt(buffer, length);
+                buffer.put((byte) color);
+                next = cell + length;
+                n += length;
+            }
+        }
+        buffer.flip();
+        outputStream.write(buffer.array(), 0, buffer.limit());
+    }
+
+    public static VoxModel read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be a .vxc model.");
+            }
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static VoxModel read(ByteBuffer buffer) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] tag = new byte[4];
+            buffer.get(tag);
+            if (!TAG.equals(new String(tag, StandardCharsets.US_ASCII))) {
+                throw new IOException("Doesn't appear to be a .vxc file.");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported .vxc version " + version + ".");
+            }
+            int sizeX = buffer.getInt();
+            int sizeY = buffer.getInt();
+            int sizeZ = buffer.getInt();
+            int maxSize = buffer.getInt();
+            int numVoxels = buffer.getInt();
+            int numBricks = buffer.getInt();
+            if (numVoxels < 0 || numBricks < 0 || numBricks > numVoxels) {
+                throw new IOException("Corrupt .vxc header.");
+            }
+            Palette palette = AssetArchive.readPalette(buffer);
+            long[] voxels = new long[numVoxels];
+            int n = 0;
+            for (int b = 0; b < numBricks; b++) {
+                int bx = buffer.getShort();
+                int by = buffer.getShort();
+                int bz = buffer.getShort();
+                int count = buffer.getShort() & 0xFFFF;
+                int maxBrick = MAX_COORDINATE >>> VoxelIndex.BRICK_BITS;
+                if (bx < 0 || bx >= maxBrick || by < 0 || by >= maxBrick || bz < 0 || bz >= maxBrick || count > VoxelIndex.BRICK_CELLS || n + count > numVoxels) {
+                    throw new IOException("Corrupt .vxc brick.");
+                }
+                int baseX = bx << VoxelIndex.BRICK_BITS;
+                int baseY = by << VoxelIndex.BRICK_BITS;
+                int baseZ = bz << VoxelIndex.BRICK_BITS;
+                int cell = 0;
+                for (int end = n + count; n < end; ) {
+                    cell += getVarInt(buffer);
+                    int length = getVarInt(buffer);
+                    int color = buffer.get() & 0xFF;
+                    if (cell < 0 || length <= 0 || length > VoxelIndex.BRICK_CELLS - cell || n + length > end) {
+                        throw new IOException("Corrupt .vxc run.");
+                    }
+                    for (int last = cell + length; cell < last; cell++) {
+                        int x = baseX | cell & VoxelIndex.BRICK_MASK;
+                        int y = baseY | cell >>> VoxelIndex.BRICK_BITS & VoxelIndex.BRICK_MASK;
+                        int z = baseZ | cell >>> (2 * VoxelIndex.BRICK_BITS);
+                        voxels[n++] = VoxelBuffer.pack(x, y, z, color);
+                    }
+                }
+            }
+            if (n != numVoxels) {
+                throw new IOException("Expected " + numVoxels + " voxels but found " + n + ".");
+            }
+            VoxModel model = VoxModel.fromUniqueVoxels(sizeX, sizeY, sizeZ, palette, new VoxelBuffer(voxels, numVoxels));
+            model.setMaxSize(maxSize);
+            return model;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("The .vxc file is truncated.");
+        }
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt .vxc integer.");
+    }
+
+    /**
+     * @return true if the file name is that of a .vxc file.
+     */
+    public static boolean isCompositeFile(String filename) {
+        return filename.toLowerCase().endsWith(".vxc");
+    }
+
+}
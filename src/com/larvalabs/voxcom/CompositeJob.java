@@ -0,0 +1,550 @@
+package com.larvalabs.voxcom;
+
+import org.ho.yaml.Yaml;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Composites the scene described by one YAML file and writes out the result. Everything set by the file, such as the
+ * maximum size and whether materials are ignored, belongs to the job, so several jobs can run at once in the same JVM
+ * with different settings, sharing a thread pool and a {@link ModelCache}.
+ *
+ * @author John Watkinson
+ */
+public class CompositeJob {
+
+    // In MB
+    private static final int DEFAULT_MEMORY_BUDGET = 512;
+
+    private static final int DEFAULT_MIN_TILE_VOXELS = 256;
+
+    private final String file;
+    private String reportFile;
+    private PrintStream log = System.out;
+
+    public CompositeJob(String file) {
+        this.file = file;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Sets the file to write the JSON report of the run to, unless the scene names its own.
+     */
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Sets where progress messages are written, which is standard output by default.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Runs the job, reading models through the given cache and doing any parallel work on the given pool.
+     *
+     * @return the timings and counts for the run.
+     */
+    public RunReport run(ModelCache cache, ForkJoinPool pool) throws Exception {
+        RunReport report = new RunReport(file);
+        RunReport.Phase parse = report.phase("parse");
+        parse.start();
+        HashMap yaml = (HashMap) Yaml.load(new File(file));
+        parse.stop();
+        String outFile;
+        boolean forViewer = getBoolean(yaml, "viewer", false);
+        // If set, a viewer scene is written as one multi-model file instead of a folder of tiles.
+        boolean singleFile = getBoolean(yaml, "singleFile", false);
+        int maxSize;
+        if (forViewer) {
+            maxSize = Voxcom.MAX_SIZE_VIEWER;
+            outFile = "scene";
+        } else {
+            maxSize = Voxcom.MAX_SIZE_VOX;
+            outFile = "scene.vox";
+        }
+        if (yaml.containsKey("output")) {
+            outFile = yaml.get("output").toString();
+        }
+        // A .vxc output keeps the full range of coordinates, so it can be placed into larger scenes
+        boolean compositeOutput = CompositeFormat.isCompositeFile(outFile);
+        if (compositeOutput) {
+            maxSize = CompositeFormat.MAX_COORDINATE;
+        }
+        // If set, ignore materials when merging palettes, just use color.
+        boolean ignoreMaterials = getBoolean(yaml, "ignoreMaterials", false);
+        // If set, transform the models on all available cores.
+        boolean parallel = getBoolean(yaml, "parallel", false);
+        // If set, remove voxels that are completely surrounded by others before writing.
+        boolean cull = getBoolean(yaml, "cull", false);
+        // If set, a viewer scene is composited straight into tiles, spilling to disk past the memory budget in MB.
+        boolean streaming = getBoolean(yaml, "streaming", false);
+        long memoryBudget = getInt(yaml, "memoryBudget", DEFAULT_MEMORY_BUDGET) * 1024L * 1024L;
+        // If set, viewer tiles are fitted to the voxels rather than cut from a grid, and tiles with fewer voxels than
+        // the minimum are merged into others.
+        boolean adaptiveTiles = getBoolean(yaml, "adaptiveTiles", false);
+        int minTileVoxels = getInt(yaml, "minTileVoxels", DEFAULT_MIN_TILE_VOXELS);
+        // If set, also write this many levels of detail, each at half the resolution of the one before.
+        int lodLevels = getInt(yaml, "lod", 0);
+        // If set, also write the result as a greedy-meshed OBJ or PLY file.
+        String meshFile = yaml.containsKey("mesh") ? yaml.get("mesh").toString() : null;
+        // If set, write timings and memory use for each phase of the run to this JSON file.
+        String reportFile = this.reportFile;
+        if (yaml.containsKey("report")) {
+            reportFile = yaml.get("report").toString();
+        }
+        // If set, model names are looked up in these archives before being read as files.
+        ArrayList<AssetArchive> archives = new ArrayList<>();
+        Object archiveNames = yaml.get("archive");
+        if (archiveNames != null) {
+            for (Object name : archiveNames instanceof List ? (List) archiveNames : Collections.singletonList(archiveNames)) {
+                archives.add(cache.getArchive(name.toString()));
+            }
+        }
+        RunReport.Phase decode = report.phase("decode");
+        RunReport.Phase merge = report.phase("merge");
+        RunReport.Phase transform = report.phase("transform");
+        RunReport.Phase add = report.phase("add");
+        ArrayList<HashMap> models = (ArrayList) yaml.get("models");
+        if (compositeOutput && isUpToDate(getOutputs(outFile, lodLevels, meshFile), models, archives)) {
+            log.println(" - '" + outFile + "' is up to date, skipping.");
+            finish(report, reportFile, 0);
+            return report;
+        }
+        VoxModel parent = new VoxModel(1, 1, 1);
+        parent.setMaxSize(maxSize);
+        parent.getPalette().setIgnoreMaterials(ignoreMaterials);
+        StreamingCompositor streamer = null;
+        if (streaming) {
+            if (usesOperations(models)) {
+                log.println(" - Streaming can't subtract, intersect or paint, compositing in memory instead.");
+            } else if (forViewer && !singleFile) {
+                streamer = new StreamingCompositor(maxSize, Voxcom.MAX_SIZE_VOX, memoryBudget);
+                streamer.getPalette().setIgnoreMaterials(ignoreMaterials);
+            } else {
+                log.println(" - Streaming only applies to viewer scenes written as tiles, compositing in memory instead.");
+            }
+        }
+        ArrayList<VoxModel> voxModels = new ArrayList<>();
+        ArrayList<Placement> placements = new ArrayList<>();
+        // Whatever happens, remove any tiles the streamer has spilled, as a daemon would otherwise leave them behind
+        try {
+            for (HashMap model : models) {
+                String filename = model.get("name").toString();
+                int scale = getInt(model, "scale", 1);
+                float posX = getFloat(model, "posX", 0);
+                float posY = getFloat(model, "posY", 0);
+                float posZ = getFloat(model, "posZ", 0);
+                boolean centerX = getBoolean(model, "centerX", false);
+                boolean centerY = getBoolean(model, "centerY", false);
+                boolean centerZ = getBoolean(model, "centerZ", false);
+                boolean flipX = getBoolean(model, "flipX", false);
+                boolean flipY = getBoolean(model, "flipY", false);
+                boolean flipZ = getBoolean(model, "flipZ", false);
+                int rotateX = getInt(model, "rotateX", 0);
+                int rotateY = getInt(model, "rotateY", 0);
+                int rotateZ = getInt(model, "rotateZ", 0);
+                Operation operation = getOperation(model);
+                log.println(" - Adding '" + filename + "'...");
+                RunReport.Instance instance = report.addInstance(filename);
+                decode.start();
+                VoxModel vm = getModel(cache, archives, filename);
+                instance.decodeNanos = decode.stop();
+                instance.scale = scale;
+                instance.voxelsIn = vm.getVoxels().size();
+                Placement placement = new Placement(posX, posY, posZ, centerX, centerY, centerZ, flipX, flipY, flipZ, rotateX, rotateY, rotateZ);
+                placement.scale = scale;
+                placement.operation = operation;
+                List<Placement> copies = getCopies(model, placement);
+                if (copies.size() > 1) {
+                    log.println("   (" + copies.size() + " copies)");
+                }
+                if (streamer != null) {
+                    transform.start();
+                    for (Placement copy : copies) {
+                        streamer.add(vm, copy);
+                    }
+                    instance.transformNanos = transform.stop();
+                } else if (parallel && copies.size() == 1) {
+                    voxModels.add(vm);
+                    placements.add(placement);
+                } else if (copies.size() > 1) {
+                    if (!voxModels.isEmpty()) {
+                        // Add the models before these first, to keep the order
+                        RunReport.Phase composite = report.phase("composite");
+                        composite.start();
+                        parent.addAll(voxModels, placements, pool);
+                        composite.stop();
+                        voxModels.clear();
+                        placements.clear();
+                    }
+                    transform.start();
+                    instance.voxelsOut = (int) Math.min(parent.addCopies(vm, copies), Integer.MAX_VALUE);
+                    instance.transformNanos = transform.stop();
+                } else {
+                    // The same steps as VoxModel.add, timed separately
+                    merge.start();
+                    int[] remap = parent.merge(vm, operation);
+                    instance.mergeNanos = merge.stop();
+                    if (operation == Operation.UNION) {
+                        // A chunk of voxels at a time, so that scaled models aren't transformed into one large buffer
+                        InstanceTransform instanceTransform = parent.getTransform(vm, placement);
+                        int chunkSize = VoxModel.getUnionChunkSize(placement);
+                        int numVoxels = vm.getVoxels().size();
+                        VoxelBuffer transformed = VoxModel.newChunkBuffer(placement, numVoxels);
+                        for (int start = 0; start < numVoxels; start += chunkSize) {
+                            transformed.clear();
+                            transform.start();
+                            instanceTransform.apply(vm.getVoxels(), start, Math.min(start + chunkSize, numVoxels), remap, transformed);
+                            instance.transformNanos += transform.stop();
+                            instance.voxelsOut += transformed.size();
+                            add.start();
+                            parent.addVoxels(transformed);
+                            instance.addNanos += add.stop();
+                        }
+                    } else {
+                        transform.start();
+                        VoxelBuffer transformed = parent.transform(vm, placement, remap);
+                        instance.transformNanos = transform.stop();
+                        instance.voxelsOut = transformed.size();
+                        add.start();
+                        parent.combine(transformed, operation);
+                        instance.addNanos = add.stop();
+                    }
+                }
+            }
+            if (streamer != null) {
+                if (cull) {
+                    log.println(" - Culling isn't available when streaming, skipping it.");
+                }
+                if (meshFile != null) {
+                    log.println(" - Meshing isn't available when streaming, skipping it.");
+                }
+                if (lodLevels > 0) {
+                    log.println(" - Levels of detail aren't available when streaming, skipping them.");
+                }
+                if (adaptiveTiles) {
+                    log.println(" - Adaptive tiles aren't available when streaming, using a grid instead.");
+                }
+                warnIfOverflowed(streamer.getPalette());
+                report.setTotal("paletteSlotsUsed", countUsed(streamer.getPalette()));
+                RunReport.Phase write = report.phase("write");
+                write.start();
+                log.println(" - Writing out vox files to '" + outFile + "'...");
+                report.setTotal("voxelsOut", streamer.writeTiles(outFile));
+                write.stop();
+                report.setTotal("voxelsSpilled", streamer.getSpilledVoxels());
+                log.println(" - Drag the file '" + outFile + ".txt' into the MagicaVoxel Viewer to render.");
+                finish(report, reportFile, getBytesWritten(outFile, true));
+                return report;
+            }
+        } finally {
+            if (streamer != null) {
+                streamer.close();
+            }
+        }
+        if (parallel) {
+            RunReport.Phase composite = report.phase("composite");
+            composite.start();
+            parent.addAll(voxModels, placements, pool);
+            composite.stop();
+        }
+        if (cull) {
+            log.println(" - Culling hidden voxels...");
+            RunReport.Phase culling = report.phase("cull");
+            culling.start();
+            int culled = parent.cullHidden(pool);
+            culling.stop();
+            report.setTotal("voxelsCulled", culled);
+            log.println(" - Removed " + culled + " hidden voxels.");
+        }
+        RunReport.Phase clip = report.phase("clip");
+        clip.start();
+        parent.clipToVoxels();
+        clip.stop();
+        report.setTotal("voxelsOut", parent.getVoxels().size());
+        warnIfOverflowed(parent.getPalette());
+        report.setTotal("paletteSlotsUsed", countUsed(parent.getPalette()));
+        RunReport.Phase write = report.phase("write");
+        write.start();
+        long bytesWritten = writeOutput(parent, outFile, forViewer, singleFile, compositeOutput, adaptiveTiles ? minTileVoxels : -1);
+        write.stop();
+        if (lodLevels > 0) {
+            RunReport.Phase lod = report.phase("lod");
+            VoxModel level = parent;
+            for (int n = 1; n <= lodLevels; n++) {
+                lod.start();
+                level = level.downsample();
+                lod.stop();
+                write.start();
+                bytesWritten += writeOutput(level, getLevelName(outFile, n), forViewer, singleFile, compositeOutput, adaptiveTiles ? minTileVoxels : -1);
+                write.stop();
+            }
+        }
+        if (meshFile != null) {
+            log.println(" - Writing mesh to '" + meshFile + "'...");
+            RunReport.Phase mesh = report.phase("mesh");
+            mesh.start();
+            report.setTotal("meshTriangles", MeshExporter.write(parent, new File(meshFile), pool));
+            mesh.stop();
+        }
+        finish(report, reportFile, bytesWritten);
+        return report;
+    }
+
+    /**
+     * Writes the model in the form the scene asked for. Viewer tiles are fitted to the voxels if the minimum number of
+     * voxels per tile isn't negative, and cut from a grid otherwise.
+     *
+     * @return the number of bytes written.
+     */
+    private long writeOutput(VoxModel model, String outFile, boolean forViewer, boolean singleFile, boolean compositeOutput, int minTileVoxels) throws IOException {
+        if (compositeOutput) {
+            log.println(" - Writing composite result to '" + outFile + "'...");
+            CompositeFormat.write(model, new File(outFile));
+        } else if (forViewer && singleFile) {
+            if (!outFile.endsWith(".vox")) {
+                outFile = outFile + ".vox";
+            }
+            log.println(" - Writing multi-model vox result to '" + outFile + "'...");
+            FileOutputStream out = new FileOutputStream(outFile);
+            VoxFormat.write(model.splitIntoScene(Voxcom.MAX_SIZE_VOX), out);
+            out.close();
+        } else if (forViewer) {
+            log.println(" - Writing out vox files to '" + outFile + "'...");
+            if (minTileVoxels >= 0) {
+                model.splitIntoAdaptiveTiles(outFile, Voxcom.MAX_SIZE_VOX, minTileVoxels);
+            } else {
+                model.splitIntoTiles(outFile, Voxcom.MAX_SIZE_VOX);
+            }
+            log.println(" - Drag the file '" + outFile + ".txt' into the MagicaVoxel Viewer to render.");
+        } else {
+            log.println(" - Writing vox result to '" + outFile + "'...");
+            FileOutputStream out = new FileOutputStream(outFile);
+            VoxFormat.write(model, out);
+            out.close();
+        }
+        return getBytesWritten(outFile, forViewer && !singleFile && !compositeOutput);
+    }
+
+    /**
+     * @return the output file name for a level of detail, with "_lod" and the level added before any extension.
+     */
+    private static String getLevelName(String outFile, int level) {
+        int dot = outFile.lastIndexOf('.');
+        if (dot > 0 && dot > outFile.lastIndexOf(File.separatorChar) + 1) {
+            return outFile.substring(0, dot) + "_lod" + level + outFile.substring(dot);
+        }
+        return outFile + "_lod" + level;
+    }
+
+    /**
+     * @return every file the scene writes: the output, each level of detail and the mesh.
+     */
+    private static List<String> getOutputs(String outFile, int lodLevels, String meshFile) {
+        List<String> outputs = new ArrayList<>();
+        outputs.add(outFile);
+        for (int n = 1; n <= lodLevels; n++) {
+            outputs.add(getLevelName(outFile, n));
+        }
+        if (meshFile != null) {
+            outputs.add(meshFile);
+        }
+        return outputs;
+    }
+
+    /**
+     * @return true if every output exists and is newer than the scene file and everything it places, so compositing
+     * again would give the same result.
+     */
+    private boolean isUpToDate(List<String> outputs, List<HashMap> models, List<AssetArchive> archives) {
+        long written = Long.MAX_VALUE;
+        for (String output : outputs) {
+            // Zero if the file doesn't exist
+            written = Math.min(written, new File(output).lastModified());
+        }
+        if (written == 0 || new File(file).lastModified() >= written) {
+            return false;
+        }
+        for (AssetArchive archive : archives) {
+            if (archive.getLastModified() >= written) {
+                return false;
+            }
+        }
+        for (HashMap model : models) {
+            String name = model.get("name").toString();
+            if (inArchive(archives, name)) {
+                // The archive was checked above
+                continue;
+            }
+            File input = new File(name);
+            if (!input.exists() || input.lastModified() >= written) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean inArchive(List<AssetArchive> archives, String name) {
+        for (AssetArchive archive : archives) {
+            if (archive.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static VoxModel getModel(ModelCache cache, List<AssetArchive> archives, String name) throws IOException {
+        for (AssetArchive archive : archives) {
+            if (archive.contains(name)) {
+                return cache.get(archive, name);
+            }
+        }
+        return cache.get(name);
+    }
+
+    /**
+     * Expands the repeat or grid directive of a model entry, if it has one, into a placement for each copy. With
+     * {@code repeat: N}, copy n is moved by n steps, and with {@code grid: [nx, ny, nz]} the copies are laid out along
+     * each axis by that axis's step, X first. Each copy can take its Z rotation from {@code rotateCycle}, in turn.
+     */
+    private static List<Placement> getCopies(HashMap model, Placement placement) {
+        int[] counts = {getInt(model, "repeat", 1), 1, 1};
+        boolean grid = model.containsKey("grid");
+        if (grid) {
+            List sizes = (List) model.get("grid");
+            for (int k = 0; k < 3; k++) {
+                counts[k] = k < sizes.size() ? Integer.parseInt(sizes.get(k).toString()) : 1;
+            }
+        }
+        if (counts[0] * counts[1] * counts[2] == 1) {
+            return Collections.singletonList(placement);
+        }
+        float stepX = getFloat(model, "stepX", 0);
+        float stepY = getFloat(model, "stepY", 0);
+        float stepZ = getFloat(model, "stepZ", 0);
+        List rotations = (List) model.get("rotateCycle");
+        ArrayList<Placement> copies = new ArrayList<>();
+        for (int k = 0; k < counts[2]; k++) {
+            for (int j = 0; j < counts[1]; j++) {
+                for (int i = 0; i < counts[0]; i++) {
+                    int n = copies.size();
+                    Placement copy = new Placement(placement);
+                    if (grid) {
+                        copy.x += i * stepX;
+                        copy.y += j * stepY;
+                        copy.z += k * stepZ;
+                    } else {
+                        copy.x += n * stepX;
+                        copy.y += n * stepY;
+                        copy.z += n * stepZ;
+                    }
+                    if (rotations != null && !rotations.isEmpty()) {
+                        copy.rotateZ = Integer.parseInt(rotations.get(n % rotations.size()).toString());
+                    }
+                    copies.add(copy);
+                }
+            }
+        }
+        return copies;
+    }
+
+    private static Operation getOperation(HashMap model) {
+        Object obj = model.get("operation");
+        return obj == null ? Operation.UNION : Operation.parse(obj.toString());
+    }
+
+    private static boolean usesOperations(List<HashMap> models) {
+        for (HashMap model : models) {
+            if (getOperation(model) != Operation.UNION) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finish(RunReport report, String reportFile, long bytesWritten) throws IOException {
+        report.setTotal("bytesWritten", bytesWritten);
+        if (reportFile != null) {
+            log.println(" - Writing report to '" + reportFile + "'...");
+            report.write(new File(reportFile));
+        }
+    }
+
+    private void warnIfOverflowed(Palette palette) {
+        if (palette.isOverflowed()) {
+            log.println(" - Warning: ran out of room in the palette, some models keep their original color indices.");
+        }
+    }
+
+    private static int countUsed(Palette palette) {
+        int used = 0;
+        for (int i = 1; i < 256; i++) {
+            if (palette.isUsed(i)) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the size of the output file, or for a viewer scene the total size of its tiles and import file.
+     */
+    private static long getBytesWritten(String outFile, boolean tiles) {
+        if (!tiles) {
+            return new File(outFile).length();
+        }
+        long bytes = new File(outFile + ".txt").length();
+        File[] files = new File(outFile).listFiles();
+        if (files != null) {
+            for (File tile : files) {
+                bytes += tile.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static int getInt(HashMap map, String key, int defaultValue) {
+        Object obj = map.get(key);
+        if (obj == null) {
+            return defaultValue;
+        } else {
+            return Integer.parseInt(obj.toString());
+        }
+    }
+
+    private static float getFloat(HashMap map, String key, float defaultValue) {
+        Object obj = map.get(key);
+        if (obj == null) {
+            return defaultValue;
+        } else {
+            return Float.parseFloat(obj.toString());
+        }
+    }
+
+    private static boolean getBoolean(HashMap map, String key, boolean defaultValue) {
+        Object obj = map.get(key);
+        if (obj == null) {
+            return defaultValue;
+        } else {
+            String s = obj.toString().toLowerCase();
+            if ("yes".equals(s)) {
+                return true;
+            } else if ("no".equals(s)) {
+                return false;
+            } else {
+                return Boolean.parseBoolean(obj.toString());
+            }
+        }
+    }
+
+}
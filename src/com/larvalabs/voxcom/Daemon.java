@@ -0,0 +1,120 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps Voxcom running between builds, so that the JVM stays warm and models that are placed again aren't read
+ * again. Commands are read one per line from the input, and the results are written as one line of JSON each to the
+ * output. Progress messages from the jobs go to standard error.
+ * <p>
+ * The commands are:
+ * <ul>
+ * <li>{@code <scene.yaml> [<report.json>]} composites the scene. The job is given a number, which is sent back
+ * straight away with status "accepted", and then again with the result once it finishes. Jobs run concurrently,
+ * so results can arrive in any order. Paths can contain spaces: a line that names an existing file is taken as the
+ * scene alone, a tab separates the scene from the report, and otherwise the report is whatever follows the last
+ * space.</li>
+ * <li>{@code stats} sends back the state of the model cache.</li>
+ * <li>{@code clear} empties the model cache.</li>
+ * <li>{@code quit}, or the end of the input, waits for running jobs to finish and then stops.</li>
+ * </ul>
+ *
+ * @author John Watkinson
+ */
+public class Daemon {
+
+    private final ModelCache cache;
+    private final ForkJoinPool pool;
+    private final PrintStream out;
+    private final AtomicInteger nextJob = new AtomicInteger(1);
+
+    public Daemon(ModelCache cache, ForkJoinPool pool, PrintStream out) {
+        this.cache = cache;
+        this.pool = pool;
+        this.out = out;
+    }
+
+    /**
+     * Handles commands from the reader until it ends or a quit command is read, then waits for any running jobs.
+     */
+    public void run(BufferedReader in) throws IOException, InterruptedException {
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals("quit")) {
+                break;
+            } else if (line.equals("stats")) {
+                respond("{\"status\": \"ok\", \"cache\": " + getCacheJson() + "}");
+            } else if (line.equals("clear")) {
+                cache.clear();
+                respond("{\"status\": \"ok\", \"cache\": " + getCacheJson() + "}");
+            } else {
+                submit(parseJob(line));
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the scene and, if there is one, the report named by a job command.
+     */
+    static String[] parseJob(String line) {
+        int tab = line.indexOf('\t');
+        if (tab >= 0) {
+            return new String[]{line.substring(0, tab).trim(), line.substring(tab + 1).trim()};
+        }
+        int space = line.lastIndexOf(' ');
+        if (space < 0 || new File(line).isFile()) {
+            return new String[]{line};
+        }
+        return new String[]{line.substring(0, space).trim(), line.substring(space + 1)};
+    }
+
+    private void submit(String[] args) {
+        final int id = nextJob.getAndIncrement();
+        final CompositeJob job = new CompositeJob(args[0]);
+        if (args.length > 1) {
+            job.setReportFile(args[1]);
+        }
+        job.setLog(System.err);
+        respond("{\"job\": " + id + ", \"status\": \"accepted\", \"scene\": " + RunReport.quote(job.getFile()) + "}");
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    RunReport report = job.run(cache, pool);
+                    respond("{\"job\": " + id + ", \"status\": \"ok\", \"scene\": " + RunReport.quote(job.getFile())
+                            + ", \"ms\": " + RunReport.millis(report.getElapsedNanos())
+                            + ", \"voxelsOut\": " + report.getTotal("voxelsOut")
+                            + ", \"bytesWritten\": " + report.getTotal("bytesWritten")
+                            + ", \"phases\": " + report.getPhaseTimesJson()
+                            + ", \"cache\": " + getCacheJson() + "}");
+                } catch (Throwable t) {
+                    respond("{\"job\": " + id + ", \"status\": \"error\", \"scene\": " + RunReport.quote(job.getFile())
+                            + ", \"ms\": " + RunReport.millis(System.nanoTime() - start)
+                            + ", \"message\": " + RunReport.quote(String.valueOf(t)) + "}");
+                }
+            }
+        });
+    }
+
+    private String getCacheJson() {
+        return "{\"models\": " + cache.size() + ", \"voxels\": " + cache.getCachedVoxels() + ", \"hits\": " + cache.getHits()
+                + ", \"misses\": " + cache.getMisses() + ", \"evictions\": " + cache.getEvictions() + "}";
+    }
+
+    private void respond(String line) {
+        synchronized (out) {
+            out.println(line);
+            out.flush();
+        }
+    }
+
+}
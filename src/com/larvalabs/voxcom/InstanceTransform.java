@@ -0,0 +1,162 @@
+package com.larvalabs.voxcom;
+
+/**
+ * Places the voxels of a model into a scene, as described by a {@link Placement}. The scaling, flips, rotations and
+ * translation are all done in a single pass, without creating a scaled copy of the model first.
+ * <p>
+ * The flips and rotations reduce to one of the 48 {@link Orientation}s, so each output coordinate depends on just one
+ * source coordinate. Those are mapped through lookup tables built once per placement, which leaves only integer work
+ * per voxel. The tables are filled using the same float arithmetic as the original matrix transform, so the results
+ * match it exactly.
+ *
+ * @author John Watkinson
+ */
+class InstanceTransform {
+
+    private final Orientation orientation;
+    private final int scale;
+    private final int maxSize;
+    // The size of the model along each axis, after scaling
+    private final int[] sizes;
+    private final boolean[] flips;
+    private final float[] centers;
+    private final float[] positions;
+    // The output axis that each source axis ends up on
+    private final int[] targets = new int[3];
+    // For each source axis, maps a scaled coordinate along it to a coordinate along its output axis
+    private final int[][] tables = new int[3][];
+
+    InstanceTransform(VoxModel model, Placement placement, int maxSize) {
+        this.maxSize = maxSize;
+        orientation = Orientation.of(placement);
+        scale = Math.max(placement.scale, 1);
+        sizes = new int[]{model.getSizeX(), model.getSizeY(), model.getSizeZ()};
+        if (scale > 1) {
+            // As VoxModel.scale does
+            for (int k = 0; k < 3; k++) {
+                sizes[k] = Math.min(sizes[k] * scale, maxSize);
+            }
+        }
+        flips = new boolean[]{placement.flipX, placement.flipY, placement.flipZ};
+        centers = new float[]{
+                placement.centerX ? 1 : sizes[0] / 2f,
+                placement.centerY ? 1 : sizes[1] / 2f,
+                placement.centerZ ? 1 : sizes[2] / 2f
+        };
+        positions = new float[]{placement.x, placement.y, placement.z};
+        for (int a = 0; a < 3; a++) {
+            int k = orientation.getAxis(a);
+            targets[k] = a;
+            int[] table = new int[Math.max(sizes[k], 1)];
+            for (int u = 0; u < table.length; u++) {
+                table[u] = map(a, u);
+            }
+            tables[k] = table;
+        }
+    }
+
+    /**
+     * @return how far along each output axis the other transform places each voxel from where this one does, or null
+     * if they differ by more than a translation. Only coordinates within the model's size are compared.
+     */
+    int[] getOffset(InstanceTransform other) {
+        if (other.orientation != orientation || other.scale != scale || other.maxSize != maxSize) {
+            return null;
+        }
+        int[] offset = new int[3];
+        for (int k = 0; k < 3; k++) {
+            int[] table = tables[k];
+            int[] otherTable = other.tables[k];
+            if (table.length != otherTable.length) {
+                return null;
+            }
+            int delta = otherTable[0] - table[0];
+            for (int u = 1; u < table.length; u++) {
+                if (otherTable[u] - table[u] != delta) {
+                    return null;
+                }
+            }
+            offset[targets[k]] = delta;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the output coordinate along the given axis for the given scaled coordinate along its source axis.
+     */
+    private int map(int axis, int u) {
+        int k = orientation.getAxis(axis);
+        int v = flips[k] ? sizes[k] - u - 1 : u;
+        // The rotation's sign, undoing the mirroring folded into the orientation
+        float sign = flips[k] ? -orientation.getSign(axis) : orientation.getSign(axis);
+        float t = sign * (v - sizes[k] / 2f);
+        // Added in the same order as the matrix transform, so that it rounds identically
+        return (int) (t + centers[axis] + positions[axis]);
+    }
+
+    private int lookup(int k, int u) {
+        int[] table = tables[k];
+        return u < table.length ? table[u] : map(targets[k], u);
+    }
+
+    /**
+     * Transforms a range of voxels into the output buffer, remapping their palette indices with the given table.
+     * Voxels that land outside of 0 to maxSize on any axis are dropped.
+     */
+    void apply(VoxelBuffer in, int start, int end, int[] remap, VoxelBuffer out) {
+        if (scale == 1) {
+            applyUnscaled(in, start, end, remap, out);
+        } else {
+            applyScaled(in, start, end, remap, out);
+        }
+    }
+
+    private void applyUnscaled(VoxelBuffer in, int start, int end, int[] remap, VoxelBuffer out) {
+        int[] tableX = tables[0], tableY = tables[1], tableZ = tables[2];
+        int[] coords = new int[3];
+        for (int n = start; n < end; n++) {
+            long voxel = in.get(n);
+            int ux = VoxelBuffer.x(voxel);
+            int uy = VoxelBuffer.y(voxel);
+            int uz = VoxelBuffer.z(voxel);
+            coords[targets[0]] = ux < tableX.length ? tableX[ux] : map(targets[0], ux);
+            coords[targets[1]] = uy < tableY.length ? tableY[uy] : map(targets[1], uy);
+            coords[targets[2]] = uz < tableZ.length ? tableZ[uz] : map(targets[2], uz);
+            emit(coords, remap[VoxelBuffer.i(voxel)], out);
+        }
+    }
+
+    /**
+     * Expands each voxel into a cube of scale x scale x scale voxels on the fly, in the same order as
+     * {@link VoxModel#scale(int)} would, dropping any that fall beyond the maximum size.
+     */
+    private void applyScaled(VoxelBuffer in, int start, int end, int[] remap, VoxelBuffer out) {
+        int f = scale;
+        int[] coords = new int[3];
+        for (int n = start; n < end; n++) {
+            long voxel = in.get(n);
+            int x = VoxelBuffer.x(voxel) * f;
+            int y = VoxelBuffer.y(voxel) * f;
+            int z = VoxelBuffer.z(voxel) * f;
+            int i = remap[VoxelBuffer.i(voxel)];
+            for (int sx = x; sx < x + f && sx < maxSize; sx++) {
+                coords[targets[0]] = lookup(0, sx);
+                for (int sy = y; sy < y + f && sy < maxSize; sy++) {
+                    coords[targets[1]] = lookup(1, sy);
+                    for (int sz = z; sz < z + f && sz < maxSize; sz++) {
+                        coords[targets[2]] = lookup(2, sz);
+                        emit(coords, i, out);
+                    }
+                }
+            }
+        }
+    }
+
+    private void emit(int[] coords, int i, VoxelBuffer out) {
+        int rx = coords[0], ry = coords[1], rz = coords[2];
+        if (rx >= 0 && rx <= maxSize && ry >= 0 && ry <= maxSize && rz >= 0 && rz <= maxSize) {
+            out.add(rx, ry, rz, i);
+        }
+    }
+
+}
@@ -30,14 +30,22 @@ public class Material {
         values = new float[0];
     }
 
+    public Material(Material other) {
+        index = other.index;
+        used = other.used;
+        color = other.color;
+        type = other.type;
+        weight = other.weight;
+        properties = other.properties;
+        values = other.values;
+    }
+
     public void copyFrom(Material other) {
         color = other.color;
-        if (!Voxcom.ignoreMaterials) {
-            type = other.type;
-            weight = other.weight;
-            properties = other.properties;
-            values = other.values;
-        }
+        type = other.type;
+        weight = other.weight;
+        properties = other.properties;
+        values = other.values;
     }
 
     @Override
@@ -48,10 +56,6 @@ public class Material {
         Material material = (Material) o;
 
         if (color != material.color) return false;
-
-        // Forget the rest if we are ignoring materials and the colors match
-        if (Voxcom.ignoreMaterials) return true;
-
         if (type != material.type) return false;
         if (Float.compare(material.weight, weight) != 0) return false;
         if (properties != material.properties) return false;
@@ -62,12 +66,10 @@ public class Material {
     @Override
     public int hashCode() {
         int result = color;
-        if (!Voxcom.ignoreMaterials) {
-            result = 31 * result + type;
-            result = 31 * result + (weight != +0.0f ? Float.floatToIntBits(weight) : 0);
-            result = 31 * result + properties;
-            result = 31 * result + Arrays.hashCode(values);
-        }
+        result = 31 * result + type;
+        result = 31 * result + (weight != +0.0f ? Float.floatToIntBits(weight) : 0);
+        result = 31 * result + properties;
+        result = 31 * result + Arrays.hashCode(values);
         return result;
     }
 
@@ -0,0 +1,439 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a model as a polygon mesh, in OBJ or PLY format, for use outside of MagicaVoxel. Only the faces between a
+ * filled voxel and an empty cell are kept, and neighboring faces of the same color that lie in the same plane are
+ * merged into rectangles by greedy meshing, so large flat areas take just a couple of triangles.
+ * <p>
+ * The model is meshed in chunks of {@link #CHUNK_SIZE} voxels on each axis, each a separate task on the given pool.
+ * Each chunk copies its voxels, plus the layer of voxels just beyond each of its faces, into a dense grid, then sweeps
+ * slices of the grid along each axis in both directions. Coordinates are in voxel units with Z up, as in MagicaVoxel,
+ * and each face winds counter-clockwise when seen from outside.
+ * <p>
+ * PLY files are binary, with a color for each vertex. OBJ files are written with a .mtl file alongside, holding a
+ * material for each palette entry used, which carries over the glass, metal and emissive settings as best it can.
+ *
+ * @author John Watkinson
+ */
+public class MeshExporter {
+
+    public static final int CHUNK_SIZE = 32;
+
+    private static final int CHUNK_BITS = 5;
+    // The grid for each chunk has a border of one cell on each side
+    private static final int GRID_SIZE = CHUNK_SIZE + 2;
+    private static final int[] GRID_STRIDES = {1, GRID_SIZE, GRID_SIZE * GRID_SIZE};
+
+    // Chunk coordinates are at most 11 bits, as voxel coordinates are at most 16
+    private static final int KEY_BITS = 11;
+
+    // The values stored for each quad: its face, the coordinates of its first corner, its width, height and color
+    private static final int QUAD_INTS = 7;
+
+    private static final int MATERIAL_METAL = 1;
+    private static final int MATERIAL_GLASS = 2;
+    private static final int MATERIAL_EMISSIVE = 3;
+
+    /**
+     * The quads found in one chunk.
+     */
+    private static class Quads {
+
+        int[] data = new int[QUAD_INTS * 64];
+        int size;
+
+        void add(int face, int x, int y, int z, int width, int height, int color) {
+            if (size + QUAD_INTS > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = face;
+            data[size++] = x;
+            data[size++] = y;
+            data[size++] = z;
+            data[size++] = width;
+            data[size++] = height;
+            data[size++] = color;
+        }
+
+    }
+
+    /**
+     * Writes the model as OBJ if the file name ends in .obj, and as PLY otherwise.
+     *
+     * @return the number of triangles written.
+     */
+    public static int write(VoxModel model, File file, ForkJoinPool pool) throws IOException, InterruptedException {
+        if (file.getName().toLowerCase().endsWith(".obj")) {
+            return writeObj(model, file, pool);
+        } else {
+            return writePly(model, file, pool);
+        }
+    }
+
+    /**
+     * Writes the model as a binary PLY file, with each vertex colored from the palette.
+     *
+     * @return the number of triangles written.
+     */
+    public static int writePly(VoxModel model, File file, ForkJoinPool pool) throws IOException, InterruptedException {
+        List<Quads> chunks = mesh(model, pool);
+        int numQuads = countQuads(chunks);
+        Palette palette = model.getPalette();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            String header = "ply\n"
+                    + "format binary_little_endian 1.0\n"
+                    + "comment Generated by Voxcom (https://github.com/larvalabs/voxcom)\n"
+                    + "element vertex " + 4L * numQuads + "\n"
+                    + "property float x\nproperty float y\nproperty float z\n"
+                    + "property uchar red\nproperty uchar green\nproperty uchar blue\n"
+                    + "element face " + 2L * numQuads + "\n"
+                    + "property list uchar int vertex_indices\n"
+                    + "end_header\n";
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+            float[] corners = new float[12];
+            for (Quads quads : chunks) {
+                for (int q = 0; q < quads.size; q += QUAD_INTS) {
+                    getCorners(quads.data, q, corners);
+                    int color = palette.getColor(quads.data[q + 6]);
+                    for (int c = 0; c < 12; c += 3) {
+                        if (buffer.remaining() < 15) {
+                            flush(buffer, channel);
+                        }
+                        buffer.putFloat(corners[c]).putFloat(corners[c + 1]).putFloat(corners[c + 2]);
+                        buffer.put((byte) (color >>> 24)).put((byte) (color >>> 16)).put((byte) (color >>> 8));
+                    }
+                }
+            }
+            for (int q = 0; q < numQuads; q++) {
+                if (buffer.remaining() < 26) {
+                    flush(buffer, channel);
+                }
+                int v = 4 * q;
+                buffer.put((byte) 3).putInt(v).putInt(v + 1).putInt(v + 2);
+                buffer.put((byte) 3).putInt(v).putInt(v + 2).putInt(v + 3);
+            }
+            flush(buffer, channel);
+        } finally {
+            out.close();
+        }
+        return 2 * numQuads;
+    }
+
+    /**
+     * Writes the model as an OBJ file, and its materials to a .mtl file of the same name. Faces are grouped by
+     * material.
+     *
+     * @return the number of triangles written.
+     */
+    public static int writeObj(VoxModel model, File file, ForkJoinPool pool) throws IOException, InterruptedException {
+        List<Quads> chunks = mesh(model, pool);
+        int numQuads = countQuads(chunks);
+        // Sort the quads by color, so that each material is only switched to once
+        int[] counts = new int[257];
+        for (Quads quads : chunks) {
+            for (int q = 0; q < quads.size; q += QUAD_INTS) {
+                counts[quads.data[q + 6] + 1]++;
+            }
+        }
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        int[] colors = counts.clone();
+        int[] sorted = new int[numQuads * QUAD_INTS];
+        for (Quads quads : chunks) {
+            for (int q = 0; q < quads.size; q += QUAD_INTS) {
+                System.arraycopy(quads.data, q, sorted, QUAD_INTS * counts[quads.data[q + 6]]++, QUAD_INTS);
+            }
+        }
+        chunks = null;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        File mtlFile = new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".mtl");
+        Palette palette = model.getPalette();
+        PrintWriter mtl = new PrintWriter(new BufferedWriter(new FileWriter(mtlFile)));
+        try {
+            mtl.println("# Generated by Voxcom (https://github.com/larvalabs/voxcom)");
+            for (int i = 1; i < 256; i++) {
+                if (colors[i + 1] > colors[i]) {
+                    writeMaterial(mtl, palette.getMaterial(i));
+                }
+            }
+        } finally {
+            mtl.close();
+        }
+        PrintWriter obj = new PrintWriter(new BufferedWriter(new FileWriter(file), 64 * 1024));
+        try {
+            obj.println("# Generated by Voxcom (https://github.com/larvalabs/voxcom)");
+            obj.println("mtllib " + mtlFile.getName());
+            // The normals of the six faces, in the order of the face numbers
+            obj.println("vn 1 0 0\nvn -1 0 0\nvn 0 1 0\nvn 0 -1 0\nvn 0 0 1\nvn 0 0 -1");
+            float[] corners = new float[12];
+            StringBuilder line = new StringBuilder();
+            for (int q = 0; q < sorted.length; q += QUAD_INTS) {
+                getCorners(sorted, q, corners);
+                for (int c = 0; c < 12; c += 3) {
+                    line.setLength(0);
+                    line.append("v ").append((int) corners[c]).append(' ').append((int) corners[c + 1]).append(' ').append((int) corners[c + 2]);
+                    obj.println(line);
+                }
+            }
+            int color = -1;
+            for (int q = 0, v = 1; q < sorted.length; q += QUAD_INTS, v += 4) {
+                if (sorted[q + 6] != color) {
+                    color = sorted[q + 6];
+                    obj.println("usemtl " + getMaterialName(color));
+                }
+                int n = sorted[q] + 1;
+                line.setLength(0);
+                line.append("f ").append(v).append("//").append(n).append(' ').append(v + 1).append("//").append(n).append(' ').append(v + 2).append("//").append(n);
+                line.append("\nf ").append(v).append("//").append(n).append(' ').append(v + 2).append("//").append(n).append(' ').append(v + 3).append("//").append(n);
+                obj.println(line);
+            }
+        } finally {
+            obj.close();
+        }
+        return 2 * numQuads;
+    }
+
+    private static void writeMaterial(PrintWriter mtl, Material material) {
+        float r = (material.color >>> 24) / 255f;
+        float g = (material.color >>> 16 & 0xFF) / 255f;
+        float b = (material.color >>> 8 & 0xFF) / 255f;
+        mtl.println();
+        mtl.println("newmtl " + getMaterialName(material.index));
+        mtl.println(String.format(Locale.ROOT, "Kd %.4f %.4f %.4f", r, g, b));
+        if (material.type == MATERIAL_GLASS) {
+            mtl.println(String.format(Locale.ROOT, "d %.4f", 1 - material.weight));
+        } else if (material.type == MATERIAL_METAL) {
+            mtl.println(String.format(Locale.ROOT, "Pm %.4f", material.weight));
+        } else if (material.type == MATERIAL_EMISSIVE) {
+            mtl.println(String.format(Locale.ROOT, "Ke %.4f %.4f %.4f", r * material.weight, g * material.weight, b * material.weight));
+        }
+    }
+
+    private static String getMaterialName(int index) {
+        return "voxcom_" + index;
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int countQuads(List<Quads> chunks) throws IOException {
+        long numQuads = 0;
+        for (Quads quads : chunks) {
+            numQuads += quads.size / QUAD_INTS;
+        }
+        // Quads are numbered with ints, seven per quad when sorted for OBJ
+        if (QUAD_INTS * numQuads > Integer.MAX_VALUE) {
+            throw new IOException("Mesh is too large to write.");
+        }
+        return (int) numQuads;
+    }
+
+    /**
+     * Fills in the coordinates of the four corners of a quad, in counter-clockwise order seen from outside.
+     */
+    private static void getCorners(int[] data, int q, float[] corners) {
+        int face = data[q];
+        int axis = face >> 1;
+        int u = (axis + 1) % 3;
+        int v = (axis + 2) % 3;
+        int width = data[q + 4];
+        int height = data[q + 5];
+        for (int c = 0; c < 4; c++) {
+            // Going around the corners the other way for faces pointing down an axis
+            int corner = (face & 1) == 0 ? c : (4 - c) & 3;
+            corners[3 * c] = data[q + 1];
+            corners[3 * c + 1] = data[q + 2];
+            corners[3 * c + 2] = data[q + 3];
+            if (corner == 1 || corner == 2) {
+                corners[3 * c + u] += width;
+            }
+            if (corner == 2 || corner == 3) {
+                corners[3 * c + v] += height;
+            }
+        }
+    }
+
+    /**
+     * Greedy meshes the model, a chunk at a time on the given pool.
+     *
+     * @return the quads of each chunk, in order of Z, Y and then X.
+     */
+    private static List<Quads> mesh(VoxModel model, ForkJoinPool pool) throws InterruptedException {
+        // Each chunk's voxels, with coordinates relative to its grid, followed by the voxels just beyond its faces
+        TreeMap<Long, VoxelBuffer> chunks = new TreeMap<>();
+        VoxelBuffer voxels = model.getVoxels();
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            int x = VoxelBuffer.x(voxel);
+            int y = VoxelBuffer.y(voxel);
+            int z = VoxelBuffer.z(voxel);
+            long key = chunkKey(x >> CHUNK_BITS, y >> CHUNK_BITS, z >> CHUNK_BITS);
+            VoxelBuffer chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = new VoxelBuffer();
+                chunks.put(key, chunk);
+            }
+            chunk.add(gridVoxel(x, y, z, 0, 0, 0, VoxelBuffer.i(voxel)));
+        }
+        // Neighbors are only needed by chunks that have voxels of their own
+        int[] coordinates = new int[3];
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            for (int axis = 0; axis < 3; axis++) {
+                coordinates[axis] = VoxelBuffer.coordinate(voxel, axis);
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                int local = coordinates[axis] & (CHUNK_SIZE - 1);
+                int direction = local == 0 ? -1 : local == CHUNK_SIZE - 1 ? 1 : 0;
+                if (direction == 0 || (direction < 0 && coordinates[axis] == 0) || (direction > 0 && coordinates[axis] == 0xFFFF)) {
+                    continue;
+                }
+                coordinates[axis] += direction;
+                VoxelBuffer chunk = chunks.get(chunkKey(coordinates[0] >> CHUNK_BITS, coordinates[1] >> CHUNK_BITS, coordinates[2] >> CHUNK_BITS));
+                coordinates[axis] -= direction;
+                if (chunk != null) {
+                    int dx = axis == 0 ? -direction : 0;
+                    int dy = axis == 1 ? -direction : 0;
+                    int dz = axis == 2 ? -direction : 0;
+                    chunk.add(gridVoxel(coordinates[0], coordinates[1], coordinates[2], dx, dy, dz, VoxelBuffer.i(voxel)));
+                }
+            }
+        }
+        ArrayList<Callable<Quads>> tasks = new ArrayList<>();
+        for (final Map.Entry<Long, VoxelBuffer> chunk : chunks.entrySet()) {
+            tasks.add(new Callable<Quads>() {
+                @Override
+                public Quads call() {
+                    long key = chunk.getKey();
+                    int mask = (1 << KEY_BITS) - 1;
+                    int[] origin = {
+                            (int) (key & mask) << CHUNK_BITS,
+                            (int) (key >>> KEY_BITS & mask) << CHUNK_BITS,
+                            (int) (key >>> (2 * KEY_BITS)) << CHUNK_BITS
+                    };
+                    return meshChunk(chunk.getValue(), origin);
+                }
+            });
+        }
+        List<Quads> result = new ArrayList<>();
+        for (Future<Quads> future : pool.invokeAll(tasks)) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to mesh model.", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private static long chunkKey(int cx, int cy, int cz) {
+        return (long) cz << (2 * KEY_BITS) | (long) cy << KEY_BITS | cx;
+    }
+
+    /**
+     * @return the voxel with its coordinates moved into the grid of the chunk it belongs to, offset by the given
+     * amounts into the border of a neighboring chunk.
+     */
+    private static long gridVoxel(int x, int y, int z, int dx, int dy, int dz, int i) {
+        int mask = CHUNK_SIZE - 1;
+        return VoxelBuffer.pack((x & mask) + 1 + dx * CHUNK_SIZE, (y & mask) + 1 + dy * CHUNK_SIZE, (z & mask) + 1 + dz * CHUNK_SIZE, i);
+    }
+
+    private static Quads meshChunk(VoxelBuffer voxels, int[] origin) {
+        byte[] grid = new byte[GRID_SIZE * GRID_SIZE * GRID_SIZE];
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            grid[VoxelBuffer.z(voxel) * GRID_STRIDES[2] + VoxelBuffer.y(voxel) * GRID_STRIDES[1] + VoxelBuffer.x(voxel)] = (byte) VoxelBuffer.i(voxel);
+        }
+        Quads quads = new Quads();
+        int[] mask = new int[CHUNK_SIZE * CHUNK_SIZE];
+        int[] corner = new int[3];
+        for (int axis = 0; axis < 3; axis++) {
+            int u = (axis + 1) % 3;
+            int v = (axis + 2) % 3;
+            for (int direction = 1; direction >= -1; direction -= 2) {
+                int face = 2 * axis + (direction > 0 ? 0 : 1);
+                int neighbor = direction * GRID_STRIDES[axis];
+                for (int slice = 0; slice < CHUNK_SIZE; slice++) {
+                    // The colors of the faces visible in this slice, indexed by (u, v)
+                    boolean empty = true;
+                    for (int j = 0; j < CHUNK_SIZE; j++) {
+                        for (int i = 0; i < CHUNK_SIZE; i++) {
+                            int cell = (slice + 1) * GRID_STRIDES[axis] + (i + 1) * GRID_STRIDES[u] + (j + 1) * GRID_STRIDES[v];
+                            int color = grid[cell] & 0xFF;
+                            if (color != 0 && grid[cell + neighbor] == 0) {
+                                mask[j * CHUNK_SIZE + i] = color;
+                                empty = false;
+                            } else {
+                                mask[j * CHUNK_SIZE + i] = 0;
+                            }
+                        }
+                    }
+                    if (empty) {
+                        continue;
+                    }
+                    // Grow each rectangle along u as far as it goes, then along v while whole rows match
+                    for (int j = 0; j < CHUNK_SIZE; j++) {
+                        for (int i = 0; i < CHUNK_SIZE; ) {
+                            int color = mask[j * CHUNK_SIZE + i];
+                            if (color == 0) {
+                                i++;
+                                continue;
+                            }
+                            int width = 1;
+                            while (i + width < CHUNK_SIZE && mask[j * CHUNK_SIZE + i + width] == color) {
+                                width++;
+                            }
+                            int height = 1;
+                            grow:
+                            while (j + height < CHUNK_SIZE) {
+                                for (int k = 0; k < width; k++) {
+                                    if (mask[(j + height) * CHUNK_SIZE + i + k] != color) {
+                                        break grow;
+                                    }
+                                }
+                                height++;
+                            }
+                            for (int h = 0; h < height; h++) {
+                                Arrays.fill(mask, (j + h) * CHUNK_SIZE + i, (j + h) * CHUNK_SIZE + i + width, 0);
+                            }
+                            corner[axis] = origin[axis] + slice + (direction > 0 ? 1 : 0);
+                            corner[u] = origin[u] + i;
+                            corner[v] = origin[v] + j;
+                            quads.add(face, corner[0], corner[1], corner[2], width, height, color);
+                            i += width;
+                        }
+                    }
+                }
+            }
+        }
+        return quads;
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.larvalabs.voxcom;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Caches parsed models, so that each .vox file is only read once no matter how many times it is placed in a scene.
+ * Entries are keyed by the file's path, modification time and length, so a file that changes is read again. The
+ * models handed out are read-only, as they are shared by every placement. Scaling is done as each model is placed, so
+ * only the unscaled model is kept.
+ * <p>
+ * The cache can be shared by scenes being composited on different threads. If several threads ask for the same file
+ * at once, only one of them reads it and the others wait for the result. The cache can be limited to a total number
+ * of voxels, in which case the least recently used models are dropped to stay under it. Cached models are read-only
+ * and so keep no spatial index, which leaves their voxels as nearly all of the memory they hold.
+ *
+ * @author John Watkinson
+ */
+public class ModelCache {
+
+    private static class Entry {
+
+        long lastModified;
+        long length;
+        FutureTask<VoxModel> model;
+        // Zero until the model has been read
+        long voxels;
+
+        Entry(long lastModified, long length, FutureTask<VoxModel> model) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.model = model;
+        }
+
+    }
+
+    private final long maxVoxels;
+
+    // In order of access, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedVoxels;
+    private long hits, misses, evictions;
+
+    private final HashMap<String, AssetArchive> archives = new HashMap<>();
+
+    public ModelCache() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a cache that holds at most the given number of voxels across all of its models. A single model larger
+     * than that is still returned, but isn't kept.
+     */
+    public ModelCache(long maxVoxels) {
+        this.maxVoxels = maxVoxels;
+    }
+
+    /**
+     * Gets the model in a .vox file, or a scene saved as a .vxc file.
+     */
+    public VoxModel get(final String filename) throws IOException {
+        final File file = new File(filename);
+        return get(file.getCanonicalPath(), file, filename, new Callable<VoxModel>() {
+            @Override
+            public VoxModel call() throws IOException {
+                return CompositeFormat.isCompositeFile(filename) ? CompositeFormat.read(file) : VoxFormat.read(file);
+            }
+        });
+    }
+
+    /**
+     * Gets a model from an archive, opened with {@link #getArchive(String)}.
+     */
+    public VoxModel get(final AssetArchive archive, final String name) throws IOException {
+        File file = archive.getFile();
+        return get(file.getCanonicalPath() + "!" + name, file, name, new Callable<VoxModel>() {
+            @Override
+            public VoxModel call() throws IOException {
+                VoxModel model = archive.read(name);
+                if (model == null) {
+                    throw new FileNotFoundException("'" + name + "' isn't in the archive '" + archive.getFile() + "'.");
+                }
+                return model;
+            }
+        });
+    }
+
+    /**
+     * Opens an archive, or returns the one already open if the file hasn't changed since.
+     */
+    public AssetArchive getArchive(String filename) throws IOException {
+        File file = new File(filename);
+        String path = file.getCanonicalPath();
+        synchronized (archives) {
+            AssetArchive archive = archives.get(path);
+            if (archive == null || archive.getLastModified() != file.lastModified()) {
+                archive = new AssetArchive(file);
+                archives.put(path, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Gets the model stored under the key, reading it with the loader if it isn't cached or the file it came from has
+     * changed.
+     */
+    private VoxModel get(String path, File file, String filename, final Callable<VoxModel> loader) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Entry entry;
+        boolean added = false;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+                if (entry != null) {
+                    cachedVoxels -= entry.voxels;
+                }
+                entry = new Entry(lastModified, length, new FutureTask<>(new Callable<VoxModel>() {
+                    @Override
+                    public VoxModel call() throws Exception {
+                        VoxModel model = loader.call();
+                        model.makeReadOnly();
+                        return model;
+                    }
+                }));
+                entries.put(path, entry);
+                added = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (added) {
+            // Read outside of the lock, so other files can be read at the same time
+            entry.model.run();
+        }
+        VoxModel model;
+        try {
+            model = entry.model.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading '" + filename + "'.");
+        } catch (ExecutionException e) {
+            // Don't keep the failure, so that the file is read again next time
+            synchronized (this) {
+                if (entries.get(path) == entry) {
+                    entries.remove(path);
+                }
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to read '" + filename + "'.", e.getCause());
+        }
+        if (added) {
+            synchronized (this) {
+                if (entries.get(path) == entry) {
+                    entry.voxels = model.getVoxels().size();
+                    cachedVoxels += entry.voxels;
+                    evict();
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Drops the least recently used models that have been read until the cache is within its limit.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedVoxels > maxVoxels && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.model.isDone()) {
+                cachedVoxels -= entry.voxels;
+                iterator.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            cachedVoxels = 0;
+        }
+        synchronized (archives) {
+            archives.clear();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getCachedVoxels() {
+        return cachedVoxels;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.larvalabs.voxcom;
+
+/**
+ * How a placed model is combined with the scene built so far, as given by the {@code operation} of a model entry in
+ * the scene's YAML file.
+ *
+ * @author John Watkinson
+ */
+public enum Operation {
+
+    /**
+     * Adds the model's voxels, replacing any already there.
+     */
+    UNION,
+    /**
+     * Removes the scene's voxels wherever the model has one.
+     */
+    SUBTRACT,
+    /**
+     * Keeps only the scene's voxels where the model has one, removing all others.
+     */
+    INTERSECT,
+    /**
+     * Recolors the scene's voxels with the model's colors where the model has one, without adding any.
+     */
+    PAINT;
+
+    /**
+     * @return true if the model's colors end up in the scene, so its palette must be merged.
+     */
+    public boolean usesColors() {
+        return this == UNION || this == PAINT;
+    }
+
+    /**
+     * @return the operation with the given name, ignoring case.
+     */
+    public static Operation parse(String name) {
+        for (Operation operation : values()) {
+            if (operation.name().equalsIgnoreCase(name)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation '" + name + "', expected union, subtract, intersect or paint.");
+    }
+
+}
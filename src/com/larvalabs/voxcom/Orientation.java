@@ -0,0 +1,131 @@
+package com.larvalabs.voxcom;
+
+/**
+ * One of the 48 axis-aligned orientations a model can be placed in: the 24 rotations, each optionally mirrored. Each
+ * orientation is a signed permutation of the axes, so output axis {@code a} is source axis {@code getAxis(a)}
+ * multiplied by {@code getSign(a)}.
+ *
+ * @author John Watkinson
+ */
+public final class Orientation {
+
+    private static final int[][] PERMUTATIONS = {
+            {0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}
+    };
+
+    private static final Orientation[] ORIENTATIONS = new Orientation[PERMUTATIONS.length * 8];
+
+    static {
+        for (int p = 0; p < PERMUTATIONS.length; p++) {
+            for (int s = 0; s < 8; s++) {
+                int[] signs = {(s & 1) == 0 ? 1 : -1, (s & 2) == 0 ? 1 : -1, (s & 4) == 0 ? 1 : -1};
+                ORIENTATIONS[p * 8 + s] = new Orientation(p * 8 + s, PERMUTATIONS[p], signs);
+            }
+        }
+    }
+
+    private final int index;
+    private final int[] axes;
+    private final int[] signs;
+
+    private Orientation(int index, int[] axes, int[] signs) {
+        this.index = index;
+        this.axes = axes;
+        this.signs = signs;
+    }
+
+    /**
+     * @return the orientation of a model that is flipped and then rotated as given by the placement. Rotations are
+     * applied about the X axis first, then Y, then Z. Angles other than 90, 180 and 270 are treated as 0.
+     */
+    public static Orientation of(Placement placement) {
+        int[][] rot = getRotation(placement.rotateX, placement.rotateY, placement.rotateZ);
+        int[] flips = {placement.flipX ? -1 : 1, placement.flipY ? -1 : 1, placement.flipZ ? -1 : 1};
+        int p = 0;
+        int s = 0;
+        int[] axes = new int[3];
+        for (int a = 0; a < 3; a++) {
+            for (int k = 0; k < 3; k++) {
+                if (rot[a][k] != 0) {
+                    axes[a] = k;
+                    if (rot[a][k] * flips[k] < 0) {
+                        s |= 1 << a;
+                    }
+                }
+            }
+        }
+        while (PERMUTATIONS[p][0] != axes[0] || PERMUTATIONS[p][1] != axes[1]) {
+            p++;
+        }
+        return ORIENTATIONS[p * 8 + s];
+    }
+
+    /**
+     * @return the rotation matrix for the given angles, which for right angles is a signed permutation matrix.
+     */
+    static int[][] getRotation(int rotateX, int rotateY, int rotateZ) {
+        int[][] rot = new int[3][3];
+        rot[0][0] = cos(rotateY) * cos(rotateZ);
+        rot[0][1] = cos(rotateZ) * sin(rotateX) * sin(rotateY) - cos(rotateX) * sin(rotateZ);
+        rot[0][2] = cos(rotateX) * cos(rotateZ) * sin(rotateY) + sin(rotateX) * sin(rotateZ);
+        rot[1][0] = cos(rotateY) * sin(rotateZ);
+        rot[1][1] = cos(rotateX) * cos(rotateZ) + sin(rotateX) * sin(rotateY) * sin(rotateZ);
+        rot[1][2] = cos(rotateX) * sin(rotateY) * sin(rotateZ) - cos(rotateZ) * sin(rotateX);
+        rot[2][0] = -sin(rotateY);
+        rot[2][1] = cos(rotateY) * sin(rotateX);
+        rot[2][2] = cos(rotateX) * cos(rotateY);
+        return rot;
+    }
+
+    private static int sin(int angle) {
+        switch (angle) {
+            case 90:
+                return 1;
+            case 180:
+                return 0;
+            case 270:
+                return -1;
+        }
+        return 0;
+    }
+
+    private static int cos(int angle) {
+        switch (angle) {
+            case 90:
+                return 0;
+            case 180:
+                return -1;
+            case 270:
+                return 0;
+        }
+        return 1;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the source axis (0 for X, 1 for Y, 2 for Z) that the given output axis is taken from.
+     */
+    public int getAxis(int axis) {
+        return axes[axis];
+    }
+
+    /**
+     * @return 1 or -1, the direction of the source axis along the given output axis.
+     */
+    public int getSign(int axis) {
+        return signs[axis];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int a = 0; a < 3; a++) {
+            sb.append(a == 0 ? "(" : ", ").append(signs[a] < 0 ? "-" : "+").append((char) ('x' + axes[a]));
+        }
+        return sb.append(")").toString();
+    }
+
+}
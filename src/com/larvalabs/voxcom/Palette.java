@@ -1,8 +1,7 @@
 package com.larvalabs.voxcom;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.IdentityHashMap;
 
 /**
  * Stores the palette and materials info for a .vox model. Also contains code to merge the palette from a different
@@ -14,6 +13,18 @@ public class Palette {
 
     private Material[] materials = new Material[256];
 
+    // Counts changes to the colors and used entries, so a merge result can tell if its source has changed since.
+    private int modCount;
+
+    // If set, entries with the same color are treated as the same when merging, whatever their materials
+    private boolean ignoreMaterials;
+
+    // Set once a merge has run out of free entries, so the caller can warn about it
+    private boolean overflowed;
+
+    private HashMap<Object, Integer> contentIndex;
+    private IdentityHashMap<Palette, MergeResult> merged = new IdentityHashMap<>();
+
     public Palette() {
         for (int i = 0; i < materials.length; i++) {
             materials[i] = new Material();
@@ -24,71 +35,193 @@ public class Palette {
 
     public void setColor(int index, int color) {
         materials[index].color = color;
+        changed();
     }
 
     public int getColor(int index) {
         return materials[index].color;
     }
 
+    /**
+     * Note that changes made directly to the returned material are not seen by the merge index, so they should be made
+     * before this palette is merged into or from.
+     */
     public Material getMaterial(int index) {
         return materials[index];
     }
 
     public void setUsed(int index) {
-        materials[index].used = true;
+        if (!materials[index].used) {
+            materials[index].used = true;
+            modCount++;
+        }
     }
 
     public boolean isUsed(int index) {
         return materials[index].used;
     }
 
-    private static HashMap<Material, Material> createMap(Palette palette) {
-        HashMap<Material, Material> map = new HashMap<>();
-        for (int i = 0; i < palette.materials.length; i++) {
-            Material material = palette.materials[i];
-            map.put(material, material);
+    /**
+     * @return true if a merge has run out of room in this palette, leaving some colors unmerged.
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    public boolean isIgnoreMaterials() {
+        return ignoreMaterials;
+    }
+
+    /**
+     * Sets whether merges into this palette match entries on color alone, ignoring the rest of their materials. New
+     * entries then only take the color of the entry merged in.
+     */
+    public void setIgnoreMaterials(boolean ignoreMaterials) {
+        this.ignoreMaterials = ignoreMaterials;
+        changed();
+    }
+
+    private void changed() {
+        modCount++;
+        contentIndex = null;
+        merged.clear();
+    }
+
+    /**
+     * Maps the content of each entry to the highest index holding that content. It is built on the first merge into
+     * this palette and then kept up to date as merges overwrite entries.
+     */
+    private HashMap<Object, Integer> getContentIndex() {
+        if (contentIndex == null) {
+            contentIndex = new HashMap<>();
+            for (int i = 0; i < materials.length; i++) {
+                contentIndex.put(contentKey(materials[i]), i);
+            }
+        }
+        return contentIndex;
+    }
+
+    /**
+     * @return the key for an entry in the content index, which is its color when ignoring materials and otherwise a
+     * copy of the whole material.
+     */
+    private Object contentKey(Material material) {
+        return ignoreMaterials ? (Object) material.color : new Material(material);
+    }
+
+    /**
+     * @return a key to look up the content of the given material in the index, without copying it.
+     */
+    private Object lookupKey(Material material) {
+        return ignoreMaterials ? (Object) material.color : material;
+    }
+
+    private void replaceEntry(Material entry, Material source) {
+        Object oldKey = contentKey(entry);
+        Integer holder = contentIndex.get(oldKey);
+        if (holder != null && holder == entry.index) {
+            // Fall back to the next highest entry with the old content, if there is one
+            contentIndex.remove(oldKey);
+            for (int i = entry.index - 1; i >= 0; i--) {
+                if (oldKey.equals(lookupKey(materials[i]))) {
+                    contentIndex.put(oldKey, i);
+                    break;
+                }
+            }
+        }
+        if (ignoreMaterials) {
+            entry.color = source.color;
+        } else {
+            entry.copyFrom(source);
         }
-        return map;
+        Object newKey = contentKey(entry);
+        Integer existing = contentIndex.get(newKey);
+        if (existing == null || existing < entry.index) {
+            contentIndex.put(newKey, entry.index);
+        }
+        modCount++;
+        merged.clear();
     }
 
-    public void merge(VoxModel model) {
+    /**
+     * Merges the used entries of the model's palette into this one. The model itself is not modified.
+     * <p>
+     * Lookups go through an index of this palette's entries that persists across merges. Merging the same unchanged
+     * source palette again, with no entries of this palette changed in between, returns the previous table directly.
+     *
+     * @return a table mapping each palette index of the model to the corresponding index in this palette. It may be
+     * shared between merges so must not be modified.
+     */
+    public int[] merge(VoxModel model) {
         Palette other = model.getPalette();
-        HashMap<Material, Material> map = createMap(this);
-        ArrayList<Material> missingEntries = new ArrayList<>();
-        HashMap<Integer, Integer> swaps = new HashMap<>();
+        MergeResult previous = merged.get(other);
+        if (previous != null && previous.sourceModCount == other.modCount) {
+            return previous.remap;
+        }
+        HashMap<Object, Integer> index = getContentIndex();
+        int[] missingEntries = new int[materials.length];
+        int numMissing = 0;
+        int[] remap = IDENTITY_REMAP.clone();
         for (int i = 1; i < other.materials.length; i++) {
             Material material = other.materials[i];
             if (material.used) {
-                Material existing = map.get(material);
+                Integer existing = index.get(lookupKey(material));
                 if (existing != null) {
-                    existing.used = true;
-                    swaps.put(i, existing.index);
+                    materials[existing].used = true;
+                    remap[i] = existing;
                 } else {
-                    missingEntries.add(material);
+                    missingEntries[numMissing++] = i;
                 }
             }
         }
         int currentIndex = 1;
-        for (Material material : missingEntries) {
+        for (int m = 0; m < numMissing; m++) {
+            Material material = other.materials[missingEntries[m]];
             Material candidate = this.materials[currentIndex];
             while (candidate.used) {
                 currentIndex++;
                 if (currentIndex == 256) {
-                    System.out.println("Warning: ran out of room in the palette!");
-                    return;
+                    overflowed = true;
+                    return IDENTITY_REMAP;
                 }
                 candidate = this.materials[currentIndex];
             }
-            candidate.copyFrom(material);
+            replaceEntry(candidate, material);
             candidate.used = true;
-            swaps.put(material.index, candidate.index);
+            remap[material.index] = candidate.index;
         }
-        ArrayList<Voxel> voxels = model.getVoxels();
-        for (Voxel voxel : voxels) {
-            if (swaps.containsKey(voxel.i)) {
-                voxel.i = swaps.get(voxel.i);
+        // Only reuse the table if merging again would give the same one, which isn't the case when several source
+        // entries with the same content were each given a new entry.
+        boolean repeatable = true;
+        for (int i = 1; i < other.materials.length && repeatable; i++) {
+            if (other.materials[i].used) {
+                repeatable = index.get(lookupKey(other.materials[i])) == remap[i];
             }
         }
+        if (repeatable) {
+            merged.put(other, new MergeResult(other.modCount, remap));
+        }
+        return remap;
+    }
+
+    private static class MergeResult {
+
+        final int sourceModCount;
+        final int[] remap;
+
+        MergeResult(int sourceModCount, int[] remap) {
+            this.sourceModCount = sourceModCount;
+            this.remap = remap;
+        }
+
+    }
+
+    private static final int[] IDENTITY_REMAP = new int[256];
+
+    static {
+        for (int i = 0; i < IDENTITY_REMAP.length; i++) {
+            IDENTITY_REMAP[i] = i;
+        }
     }
 
     private static final int[] DEFAULT_PALETTE_LE = {
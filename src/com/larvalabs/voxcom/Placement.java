@@ -0,0 +1,42 @@
+package com.larvalabs.voxcom;
+
+/**
+ * The position and orientation of a model placed into a scene, as given by a model entry in the scene's YAML file.
+ *
+ * @author John Watkinson
+ */
+public class Placement {
+
+    public int scale = 1;
+    public float x, y, z;
+    public boolean centerX, centerY, centerZ;
+    public boolean flipX, flipY, flipZ;
+    public int rotateX, rotateY, rotateZ;
+    public Operation operation = Operation.UNION;
+
+    public Placement(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public Placement(Placement other) {
+        this(other.x, other.y, other.z, other.centerX, other.centerY, other.centerZ, other.flipX, other.flipY, other.flipZ, other.rotateX, other.rotateY, other.rotateZ);
+        scale = other.scale;
+        operation = other.operation;
+    }
+
+    public Placement(float x, float y, float z, boolean centerX, boolean centerY, boolean centerZ, boolean flipX, boolean flipY, boolean flipZ, int rotateX, int rotateY, int rotateZ) {
+        this(x, y, z);
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.centerZ = centerZ;
+        this.flipX = flipX;
+        this.flipY = flipY;
+        this.flipZ = flipZ;
+        this.rotateX = rotateX;
+        this.rotateY = rotateY;
+        this.rotateZ = rotateZ;
+    }
+
+}
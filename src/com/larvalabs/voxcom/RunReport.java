@@ -0,0 +1,241 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records where the time goes in a compositing run, and writes it out as JSON. Each phase (parsing the YAML,
+ * decoding models, merging palettes, transforming voxels, writing and so on) accumulates its wall time, the bytes
+ * allocated by the calling thread and the garbage collections that happened while it ran. Each placed model
+ * instance also gets its own entry.
+ * <p>
+ * Allocation is only counted on the thread that runs a phase, so work done on a pool in parallel shows up in the
+ * time but not in the allocated bytes.
+ *
+ * @author John Watkinson
+ */
+public class RunReport {
+
+    public class Phase {
+
+        private final String name;
+        private long nanos;
+        private long allocatedBytes;
+        private long gcCount;
+        private long gcMillis;
+        private int calls;
+
+        private long startNanos;
+        private long startAllocated;
+        private long startGcCount;
+        private long startGcMillis;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public void start() {
+            startGcCount = getGcCount();
+            startGcMillis = getGcMillis();
+            startAllocated = getAllocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * @return the wall time of this run of the phase, in nanoseconds.
+         */
+        public long stop() {
+            long elapsed = System.nanoTime() - startNanos;
+            nanos += elapsed;
+            if (startAllocated >= 0) {
+                allocatedBytes += getAllocatedBytes() - startAllocated;
+            }
+            gcCount += getGcCount() - startGcCount;
+            gcMillis += getGcMillis() - startGcMillis;
+            calls++;
+            return elapsed;
+        }
+
+    }
+
+    /**
+     * The numbers for one placed model.
+     */
+    public static class Instance {
+
+        final String name;
+        public int scale = 1;
+        public int voxelsIn;
+        public int voxelsOut;
+        public long decodeNanos;
+        public long mergeNanos;
+        public long transformNanos;
+        public long addNanos;
+
+        Instance(String name) {
+            this.name = name;
+        }
+
+    }
+
+    private final String scene;
+    private final long startNanos = System.nanoTime();
+    private final LinkedHashMap<String, Phase> phases = new LinkedHashMap<>();
+    private final List<Instance> instances = new ArrayList<>();
+    // Run-wide values such as the voxels and bytes written, in the order they were set
+    private final LinkedHashMap<String, Long> totals = new LinkedHashMap<>();
+
+    public RunReport(String scene) {
+        this.scene = scene;
+    }
+
+    /**
+     * @return the named phase, which is created the first time it is asked for.
+     */
+    public Phase phase(String name) {
+        Phase phase = phases.get(name);
+        if (phase == null) {
+            phase = new Phase(name);
+            phases.put(name, phase);
+        }
+        return phase;
+    }
+
+    public Instance addInstance(String name) {
+        Instance instance = new Instance(name);
+        instances.add(instance);
+        return instance;
+    }
+
+    public void setTotal(String name, long value) {
+        totals.put(name, value);
+    }
+
+    /**
+     * @return the named run-wide value, or -1 if it wasn't set.
+     */
+    public long getTotal(String name) {
+        Long value = totals.get(name);
+        return value == null ? -1 : value;
+    }
+
+    /**
+     * @return the time since the run started.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return the phases as a single-line JSON object mapping each phase name to its total time in milliseconds.
+     */
+    public String getPhaseTimesJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Phase phase : phases.values()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(quote(phase.name)).append(": ").append(millis(phase.nanos));
+        }
+        return sb.append('}').toString();
+    }
+
+    public void write(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(PrintWriter out) {
+        out.println("{");
+        out.println("  \"scene\": " + quote(scene) + ",");
+        out.println("  \"totalMs\": " + millis(getElapsedNanos()) + ",");
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            out.println("  " + quote(total.getKey()) + ": " + total.getValue() + ",");
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.println("  \"heap\": {\"usedBytes\": " + heap.getUsed() + ", \"committedBytes\": " + heap.getCommitted() + ", \"maxBytes\": " + heap.getMax() + "},");
+        out.println("  \"phases\": [");
+        int n = 0;
+        for (Phase phase : phases.values()) {
+            out.print("    {\"name\": " + quote(phase.name) + ", \"calls\": " + phase.calls + ", \"ms\": " + millis(phase.nanos));
+            out.print(", \"allocatedBytes\": " + (isAllocationSupported() ? phase.allocatedBytes : -1));
+            out.print(", \"gcCount\": " + phase.gcCount + ", \"gcMs\": " + phase.gcMillis + "}");
+            out.println(++n < phases.size() ? "," : "");
+        }
+        out.println("  ],");
+        out.println("  \"instances\": [");
+        n = 0;
+        for (Instance instance : instances) {
+            out.print("    {\"name\": " + quote(instance.name) + ", \"scale\": " + instance.scale);
+            out.print(", \"voxelsIn\": " + instance.voxelsIn + ", \"voxelsOut\": " + instance.voxelsOut);
+            out.print(", \"decodeMs\": " + millis(instance.decodeNanos) + ", \"mergeMs\": " + millis(instance.mergeNanos));
+            out.print(", \"transformMs\": " + millis(instance.transformNanos) + ", \"addMs\": " + millis(instance.addNanos) + "}");
+            out.println(++n < instances.size() ? "," : "");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static boolean isAllocationSupported() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes() {
+        if (!isAllocationSupported()) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+}
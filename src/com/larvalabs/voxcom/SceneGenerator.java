@@ -0,0 +1,124 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic .vox models and YAML scenes that use them, for benchmarking. The output depends only on the
+ * seed and the sizes asked for, so the same arguments always give the same files.
+ *
+ * @author John Watkinson
+ */
+public class SceneGenerator {
+
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    private final Random random;
+
+    public SceneGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Generates a model of the given size with roughly the given number of voxels, using colors from the first
+     * numColors palette entries. The voxels are laid down as random walks, so they form connected blobs like a real
+     * model rather than scattered noise.
+     */
+    public VoxModel generateModel(int size, int numVoxels, int numColors) {
+        VoxModel model = new VoxModel(size, size, size);
+        for (int i = 1; i <= numColors; i++) {
+            model.setColor(i, 0xFF000000 | random.nextInt(0x1000000));
+        }
+        int target = Math.min(numVoxels, size * size * size);
+        VoxelBuffer voxels = model.getVoxels();
+        int x = size / 2, y = size / 2, z = size / 2;
+        int color = 1;
+        // Give up on filling the last few cells after enough misses, rather than walking forever
+        for (int attempts = 0; voxels.size() < target && attempts < 8 * target; attempts++) {
+            if (random.nextInt(64) == 0) {
+                x = random.nextInt(size);
+                y = random.nextInt(size);
+                z = random.nextInt(size);
+                color = 1 + random.nextInt(numColors);
+            }
+            switch (random.nextInt(6)) {
+                case 0: x = Math.min(x + 1, size - 1); break;
+                case 1: x = Math.max(x - 1, 0); break;
+                case 2: y = Math.min(y + 1, size - 1); break;
+                case 3: y = Math.max(y - 1, 0); break;
+                case 4: z = Math.min(z + 1, size - 1); break;
+                default: z = Math.max(z - 1, 0); break;
+            }
+            if (!model.isSet(x, y, z)) {
+                model.addVoxel(x, y, z, color);
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Writes numModels generated models into the given directory, along with a scene.yaml that places numInstances
+     * of them at random positions and orientations within a world of the given size.
+     *
+     * @return the YAML file.
+     */
+    public File generateScene(File dir, int numModels, int modelSize, int voxelsPerModel, int numInstances, int worldSize, boolean viewer) throws IOException {
+        dir.mkdirs();
+        List<String> names = new ArrayList<>();
+        for (int n = 0; n < numModels; n++) {
+            String name = "model_" + n + ".vox";
+            VoxModel model = generateModel(modelSize, voxelsPerModel, 1 + random.nextInt(32));
+            FileOutputStream out = new FileOutputStream(new File(dir, name));
+            try {
+                VoxFormat.write(model, out);
+            } finally {
+                out.close();
+            }
+            names.add(name);
+        }
+        File yamlFile = new File(dir, "scene.yaml");
+        PrintWriter out = new PrintWriter(new FileWriter(yamlFile));
+        try {
+            out.println("output: \"" + new File(dir, viewer ? "scene" : "scene.vox").getPath() + "\"");
+            out.println("viewer: " + (viewer ? "yes" : "no"));
+            out.println("models:");
+            for (int n = 0; n < numInstances; n++) {
+                out.println(" - name: \"" + new File(dir, names.get(random.nextInt(names.size()))).getPath() + "\"");
+                out.println("   posX: " + random.nextInt(worldSize));
+                out.println("   posY: " + random.nextInt(worldSize));
+                out.println("   posZ: " + random.nextInt(Math.max(worldSize / 8, 1)));
+                out.println("   centerX: yes");
+                out.println("   centerY: yes");
+                out.println("   rotateX: " + ROTATIONS[random.nextInt(4)]);
+                out.println("   rotateY: " + ROTATIONS[random.nextInt(4)]);
+                out.println("   rotateZ: " + ROTATIONS[random.nextInt(4)]);
+                if (random.nextInt(4) == 0) {
+                    out.println("   flipX: yes");
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return yamlFile;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: SceneGenerator <dir> [models] [voxelsPerModel] [instances] [worldSize] [viewer] [seed]");
+            return;
+        }
+        File dir = new File(args[0]);
+        int numModels = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int voxelsPerModel = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int numInstances = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int worldSize = args.length > 4 ? Integer.parseInt(args[4]) : Voxcom.MAX_SIZE_VOX;
+        // Accepts yes or true, as the YAML settings do
+        boolean viewer = args.length > 5 && ("yes".equalsIgnoreCase(args[5]) || Boolean.parseBoolean(args[5]));
+        long seed = args.length > 6 ? Long.parseLong(args[6]) : 1;
+        File yaml = new SceneGenerator(seed).generateScene(dir, numModels, Voxcom.MAX_SIZE_VOX, voxelsPerModel, numInstances, worldSize, viewer);
+        System.out.println("Wrote " + yaml.getPath());
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.larvalabs.voxcom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Composites a scene straight into tiles, for scenes too large to hold in memory as a single model. Each placed
+ * model's voxels are transformed a chunk at a time and routed to the tile they land in. The tiles' voxels are kept in
+ * memory until they pass the memory budget, at which point the largest tiles are spilled to temporary files. Once
+ * every model has been added, the tiles are finished and written one at a time, so only one tile is ever held as a
+ * model.
+ * <p>
+ * The tiles written are the same as those from {@link VoxModel#splitIntoTiles(String, int)} on the composited model:
+ * each tile's voxels are added in the order they arrived, so the last voxel written to a position wins.
+ *
+ * @author John Watkinson
+ */
+public class StreamingCompositor {
+
+    // The number of source voxels transformed at once, before scaling
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    private static class Tile {
+
+        VoxelBuffer voxels = new VoxelBuffer();
+        // Created when the tile is first spilled
+        File spillFile;
+
+    }
+
+    private final int maxSize;
+    private final int tileSize;
+    private final long maxBufferedVoxels;
+    private final Palette palette = new Palette();
+    private final HashMap<Integer, Tile> tiles = new HashMap<>();
+    private final ByteBuffer spillBuffer = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // The size of the composited scene, as VoxModel.clipToVoxels would find it
+    private int sizeX = 1, sizeY = 1, sizeZ = 1;
+    private long bufferedVoxels;
+    private long spilledVoxels;
+
+    /**
+     * @param maxSize      voxels at or beyond this coordinate on any axis are dropped.
+     * @param tileSize     the size of each tile.
+     * @param memoryBudget roughly the most memory, in bytes, to use for voxels waiting to be written.
+     */
+    public StreamingCompositor(int maxSize, int tileSize, long memoryBudget) {
+        this.maxSize = maxSize;
+        this.tileSize = tileSize;
+        // Each buffered voxel takes a packed long
+        maxBufferedVoxels = Math.max(memoryBudget / 8, CHUNK_SIZE);
+    }
+
+    public Palette getPalette() {
+        return palette;
+    }
+
+    /**
+     * @return the number of voxels that have been spilled to temporary files so far.
+     */
+    public long getSpilledVoxels() {
+        return spilledVoxels;
+    }
+
+    /**
+     * Adds a model to the scene, as {@link VoxModel#add(VoxModel, Placement)} would. Only union placements are
+     * supported, as the other operations need the voxels already added.
+     */
+    public void add(VoxModel model, Placement placement) throws IOException {
+        if (placement.operation != Operation.UNION) {
+            throw new IllegalArgumentException("Only union placements can be streamed.");
+        }
+        int[] remap = palette.merge(model);
+        InstanceTransform transform = new InstanceTransform(model, placement, maxSize);
+        VoxelBuffer source = model.getVoxels();
+        int scale = Math.max(placement.scale, 1);
+        int chunkSize = Math.max(CHUNK_SIZE / (scale * scale * scale), 1);
+        VoxelBuffer transformed = new VoxelBuffer(CHUNK_SIZE);
+        for (int start = 0; start < source.size(); start += chunkSize) {
+            transformed.clear();
+            transform.apply(source, start, Math.min(start + chunkSize, source.size()), remap, transformed);
+            route(transformed);
+        }
+    }
+
+    private void route(VoxelBuffer transformed) throws IOException {
+        int routed = 0;
+        for (int n = 0; n < transformed.size(); n++) {
+            long voxel = transformed.get(n);
+            int x = VoxelBuffer.x(voxel);
+            int y = VoxelBuffer.y(voxel);
+            int z = VoxelBuffer.z(voxel);
+            if (x >= maxSize || y >= maxSize || z >= maxSize) {
+                continue;
+            }
+            sizeX = Math.max(sizeX, x + 1);
+            sizeY = Math.max(sizeY, y + 1);
+            sizeZ = Math.max(sizeZ, z + 1);
+            int ix = x / tileSize, iy = y / tileSize, iz = z / tileSize;
+            int key = ix | iy << 10 | iz << 20;
+            Tile tile = tiles.get(key);
+            if (tile == null) {
+                tile = new Tile();
+                tiles.put(key, tile);
+            }
+            tile.voxels.add(VoxelBuffer.pack(x - ix * tileSize, y - iy * tileSize, z - iz * tileSize, VoxelBuffer.i(voxel)));
+            routed++;
+        }
+        // Only the voxels kept in a tile count against the budget, not those dropped beyond the maximum size
+        bufferedVoxels += routed;
+        if (bufferedVoxels > maxBufferedVoxels) {
+            spill();
+        }
+    }
+
+    /**
+     * Spills the largest tiles to disk until at most half of the budget is in use, so that spills aren't triggered
+     * again straight away.
+     */
+    private void spill() throws IOException {
+        ArrayList<Tile> bySize = new ArrayList<>(tiles.values());
+        Collections.sort(bySize, new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return Integer.compare(b.voxels.size(), a.voxels.size());
+            }
+        });
+        bufferedVoxels = 0;
+        for (Tile tile : tiles.values()) {
+            bufferedVoxels += tile.voxels.size();
+        }
+        for (Tile tile : bySize) {
+            if (bufferedVoxels <= maxBufferedVoxels / 2) {
+                break;
+            }
+            bufferedVoxels -= tile.voxels.size();
+            spill(tile);
+        }
+    }
+
+    private void spill(Tile tile) throws IOException {
+        if (tile.spillFile == null) {
+            tile.spillFile = File.createTempFile("voxcom-tile", ".bin");
+            tile.spillFile.deleteOnExit();
+        }
+        FileOutputStream out = new FileOutputStream(tile.spillFile, true);
+        try {
+            FileChannel channel = out.getChannel();
+            VoxelBuffer voxels = tile.voxels;
+            for (int n = 0; n < voxels.size(); n++) {
+                if (spillBuffer.remaining() < 8) {
+                    writeFully(channel);
+                }
+                spillBuffer.putLong(voxels.get(n));
+            }
+            writeFully(channel);
+        } finally {
+            out.close();
+        }
+        spilledVoxels += tile.voxels.size();
+        // Release the memory rather than just clearing it
+        tile.voxels = new VoxelBuffer();
+    }
+
+    private void writeFully(FileChannel channel) throws IOException {
+        spillBuffer.flip();
+        while (spillBuffer.hasRemaining()) {
+            channel.write(spillBuffer);
+        }
+        spillBuffer.clear();
+    }
+
+    /**
+     * Finishes each tile in turn and writes it to its own .vox file in the given directory, along with a text file to
+     * import them into the MagicaVoxel Viewer, as {@link VoxModel#splitIntoTiles(String, int)} does. Any temporary
+     * files are removed.
+     *
+     * @return the number of voxels written.
+     */
+    public long writeTiles(String dirName) throws IOException {
+        File dir = new File(dirName);
+        dir.mkdirs();
+        int nx = (int) Math.ceil(sizeX / (float) tileSize);
+        int ny = (int) Math.ceil(sizeY / (float) tileSize);
+        int nz = (int) Math.ceil(sizeZ / (float) tileSize);
+        long written = 0;
+        PrintWriter textOut = new PrintWriter(dirName + ".txt");
+        try {
+            textOut.println("// Generated by Voxcom (https://github.com/larvalabs/voxcom)");
+            textOut.println("mv_import 2048");
+            for (int ix = 0; ix < nx; ix++) {
+                for (int iy = 0; iy < ny; iy++) {
+                    for (int iz = 0; iz < nz; iz++) {
+                        Tile tile = tiles.remove(ix | iy << 10 | iz << 20);
+                        if (tile == null) {
+                            continue;
+                        }
+                        int offsetX = ix * tileSize;
+                        int offsetY = iy * tileSize;
+                        int offsetZ = iz * tileSize;
+                        VoxModel model = finishTile(tile, Math.min(offsetX + tileSize, sizeX), Math.min(offsetY + tileSize, sizeY), Math.min(offsetZ + tileSize, sizeZ));
+                        File voxFile = new File(dir, dir.getName() + "_" + ix + "_" + iy + "_" + iz + ".vox");
+                        FileOutputStream outputStream = new FileOutputStream(voxFile);
+                        try {
+                            VoxFormat.write(model, outputStream);
+                        } finally {
+                            outputStream.close();
+                        }
+                        written += model.getVoxels().size();
+                        textOut.println(offsetX + "\t" + offsetY + "\t" + offsetZ + "\t" + voxFile.getAbsolutePath());
+                    }
+                }
+            }
+        } finally {
+            textOut.close();
+            close();
+        }
+        return written;
+    }
+
+    /**
+     * Builds the model for a tile from its spilled voxels followed by those still in memory, and deletes its
+     * temporary file.
+     */
+    private VoxModel finishTile(Tile tile, int tileSizeX, int tileSizeY, int tileSizeZ) throws IOException {
+        VoxModel model = new VoxModel(tileSizeX, tileSizeY, tileSizeZ);
+        model.setMaxSize(tileSize);
+        model.setPalette(palette);
+        if (tile.spillFile != null) {
+            FileInputStream in = new FileInputStream(tile.spillFile);
+            try {
+                FileChannel channel = in.getChannel();
+                spillBuffer.clear();
+                while (channel.read(spillBuffer) >= 0) {
+                    spillBuffer.flip();
+                    while (spillBuffer.remaining() >= 8) {
+                        addVoxel(model, spillBuffer.getLong());
+                    }
+                    spillBuffer.compact();
+                }
+            } finally {
+                in.close();
+                spillBuffer.clear();
+            }
+            tile.spillFile.delete();
+            tile.spillFile = null;
+        }
+        VoxelBuffer voxels = tile.voxels;
+        for (int n = 0; n < voxels.size(); n++) {
+            addVoxel(model, voxels.get(n));
+        }
+        tile.voxels = null;
+        return model;
+    }
+
+    private static void addVoxel(VoxModel model, long voxel) {
+        model.addVoxel(VoxelBuffer.x(voxel), VoxelBuffer.y(voxel), VoxelBuffer.z(voxel), VoxelBuffer.i(voxel));
+    }
+
+    /**
+     * Deletes any temporary files left behind.
+     */
+    public void close() {
+        for (Tile tile : tiles.values()) {
+            if (tile.spillFile != null) {
+                tile.spillFile.delete();
+            }
+        }
+        tiles.clear();
+    }
+
+}
@@ -0,0 +1,254 @@
+package com.larvalabs.voxcom;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A .vox file opened for lazy reading. Opening it makes a single pass over the chunk headers, recording where each
+ * chunk is and how large it is without decoding any of them, so that the size of each model, the palette or the
+ * voxels of a single model can each be read on their own. Chunks that aren't understood, such as the MATL, LAYR and
+ * rOBJ chunks written by newer versions of MagicaVoxel, are skipped by their declared size.
+ * <p>
+ * Files are memory-mapped, so the voxels of models that are never read aren't loaded from disk at all.
+ *
+ * @author John Watkinson
+ */
+public class VoxFile {
+
+    /**
+     * The location of a chunk in the file. The offset is that of the chunk's content, just past its header.
+     */
+    public static class Chunk {
+
+        public final String tag;
+        public final int offset;
+        public final int contentSize;
+        public final int childrenSize;
+
+        Chunk(String tag, int offset, int contentSize, int childrenSize) {
+            this.tag = tag;
+            this.offset = offset;
+            this.contentSize = contentSize;
+            this.childrenSize = childrenSize;
+        }
+
+    }
+
+    private final ByteBuffer buffer;
+    private final int version;
+    private final List<Chunk> chunks = new ArrayList<>();
+    // The SIZE and XYZI chunk of each model, in order
+    private final List<Chunk> sizeChunks = new ArrayList<>();
+    private final List<Chunk> voxelChunks = new ArrayList<>();
+    private Palette palette;
+
+    public VoxFile(File file) throws IOException {
+        this(map(file));
+    }
+
+    public VoxFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer in = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        // Format Tag
+        String formatTag = VoxFormat.readRiffTag(in);
+        if (!formatTag.equals(VoxFormat.TAG_FORMAT)) {
+            throw new IOException("Doesn't appear to be in VOX format.");
+        }
+
+        // Format Version
+        version = VoxFormat.readInt(in);
+        if (version != VoxFormat.VERSION) {
+            System.err.println("Warning: expecting version " + VoxFormat.VERSION + " but got " + version + ".");
+        }
+
+        // Main Chunk, whose children are all of the other chunks
+        String chunkTag = VoxFormat.readRiffTag(in);
+        if (!chunkTag.equals(VoxFormat.TAG_MAIN)) {
+            throw new IOException("Should be a " + VoxFormat.TAG_MAIN + " tag here.");
+        }
+        VoxFormat.skip(in, 8);
+
+        Chunk size = null;
+        while (in.remaining() >= 12) {
+            String tag = VoxFormat.readRiffTag(in);
+            int contentSize = VoxFormat.readInt(in);
+            int childrenSize = VoxFormat.readInt(in);
+            VoxFormat.require(in, (long) contentSize + childrenSize);
+            Chunk chunk = new Chunk(tag, in.position(), contentSize, childrenSize);
+            chunks.add(chunk);
+            if (VoxFormat.TAG_SIZE.equals(tag)) {
+                if (contentSize < 12) {
+                    throw new IOException("The " + VoxFormat.TAG_SIZE + " chunk is too short.");
+                }
+                size = chunk;
+            } else if (VoxFormat.TAG_XYZI.equals(tag)) {
+                if (size == null) {
+                    throw new IOException("Should be a " + VoxFormat.TAG_SIZE + " tag before each " + VoxFormat.TAG_XYZI + " tag.");
+                }
+                sizeChunks.add(size);
+                voxelChunks.add(chunk);
+                size = null;
+            }
+            in.position(in.position() + contentSize + childrenSize);
+        }
+        if (voxelChunks.isEmpty()) {
+            throw new IOException("No " + VoxFormat.TAG_XYZI + " chunk found.");
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be a .vox model.");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return every chunk in the file below the main chunk, in order, including those that aren't understood.
+     */
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @return the content of the chunk, from its own position zero, not including its children.
+     */
+    public ByteBuffer getContent(Chunk chunk) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(chunk.offset);
+        content.limit(chunk.offset + chunk.contentSize);
+        return content.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getNumModels() {
+        return voxelChunks.size();
+    }
+
+    public int getSizeX(int model) {
+        return buffer.getInt(sizeChunks.get(model).offset);
+    }
+
+    public int getSizeY(int model) {
+        return buffer.getInt(sizeChunks.get(model).offset + 4);
+    }
+
+    public int getSizeZ(int model) {
+        return buffer.getInt(sizeChunks.get(model).offset + 8);
+    }
+
+    /**
+     * @return the number of voxels the model declares, read without decoding them.
+     */
+    public int getNumVoxels(int model) throws IOException {
+        Chunk chunk = voxelChunks.get(model);
+        if (chunk.contentSize < 4) {
+            throw new IOException("The " + VoxFormat.TAG_XYZI + " chunk is too short.");
+        }
+        return buffer.getInt(chunk.offset);
+    }
+
+    /**
+     * Reads the palette from the RGBA and MATT chunks, without touching any voxels. The palette is shared by every
+     * model read from this file, and its entries are only marked as used as those models are read.
+     */
+    public synchronized Palette getPalette() throws IOException {
+        if (palette == null) {
+            Palette palette = new Palette();
+            for (Chunk chunk : chunks) {
+                if (VoxFormat.TAG_RGBA.equals(chunk.tag)) {
+                    ByteBuffer in = getContent(chunk);
+                    VoxFormat.require(in, 4 * 255);
+                    for (int i = 0; i < 255; i++) {
+                        // Colors are stored as R, G, B, A bytes
+                        int c = Integer.reverseBytes(in.getInt());
+                        palette.setColor(i + 1, c);
+                    }
+                } else if (VoxFormat.TAG_MATT.equals(chunk.tag)) {
+                    ByteBuffer in = getContent(chunk);
+                    int numValues = chunk.contentSize / 4 - 4;
+                    if (numValues < 0) {
+                        throw new IOException("The " + VoxFormat.TAG_MATT + " chunk is too short.");
+                    }
+                    int index = VoxFormat.readInt(in);
+                    Material material = palette.getMaterial(index);
+                    material.type = VoxFormat.readInt(in);
+                    material.weight = VoxFormat.readFloat(in);
+                    material.properties = VoxFormat.readInt(in);
+                    material.values = new float[numValues];
+                    for (int i = 0; i < numValues; i++) {
+                        material.values[i] = VoxFormat.readFloat(in);
+                    }
+                }
+            }
+            this.palette = palette;
+        }
+        return palette;
+    }
+
+    /**
+     * Decodes the voxels of one model. Most XYZI chunks list each position once, and then the voxels are appended as
+     * they are, without building an index. Files composited by earlier versions of Voxcom can repeat positions, so
+     * each is checked against a bitset over the voxels' bounding box, and from the first repeat on the voxels are
+     * added through the model's index, so that the last voxel at a position wins. Each call reads them again, so
+     * callers that need the model more than once should keep it.
+     */
+    public VoxModel getModel(int model) throws IOException {
+        Palette palette = getPalette();
+        ByteBuffer in = getContent(voxelChunks.get(model));
+        int numVoxels = VoxFormat.readInt(in);
+        VoxFormat.require(in, 4L * numVoxels);
+        VoxModel voxModel = new VoxModel(getSizeX(model), getSizeY(model), getSizeZ(model));
+        voxModel.setMaxSize(VoxFormat.MAX_COORDINATE);
+        voxModel.setPalette(palette);
+        voxModel.getVoxels().ensureCapacity(numVoxels);
+        // Each voxel is the bytes x, y, z, palette index, so as a little-endian int x is the low byte
+        int spanX = 0;
+        int spanY = 0;
+        int spanZ = 0;
+        int start = in.position();
+        for (int n = 0; n < numVoxels; n++) {
+            int voxel = in.getInt(start + 4 * n);
+            spanX = Math.max(spanX, (voxel & 0xFF) + 1);
+            spanY = Math.max(spanY, ((voxel >>> 8) & 0xFF) + 1);
+            spanZ = Math.max(spanZ, ((voxel >>> 16) & 0xFF) + 1);
+        }
+        long[] seen = new long[(spanX * spanY * spanZ + 63) >>> 6];
+        boolean repeated = false;
+        for (int n = 0; n < numVoxels; n++) {
+            int voxel = in.getInt();
+            int x = voxel & 0xFF;
+            int y = (voxel >>> 8) & 0xFF;
+            int z = (voxel >>> 16) & 0xFF;
+            if (!repeated) {
+                int cell = (z * spanY + y) * spanX + x;
+                repeated = (seen[cell >>> 6] & (1L << cell)) != 0;
+                seen[cell >>> 6] |= 1L << cell;
+            }
+            if (repeated) {
+                voxModel.addVoxel(x, y, z, voxel >>> 24);
+            } else {
+                voxModel.appendVoxel(x, y, z, voxel >>> 24);
+            }
+        }
+        return voxModel;
+    }
+
+}
@@ -1,7 +1,15 @@
 package com.larvalabs.voxcom;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 /**
  * Reads and writes the .vox format.
@@ -10,237 +18,535 @@ import java.util.ArrayList;
  */
 public class VoxFormat {
 
-    private static final String TAG_FORMAT = "VOX ";
-    private static final String TAG_MAIN = "MAIN";
-    private static final String TAG_PACK = "PACK";
-    private static final String TAG_SIZE = "SIZE";
-    private static final String TAG_XYZI = "XYZI";
-    private static final String TAG_RGBA = "RGBA";
-    private static final String TAG_MATT = "MATT";
+    static final String TAG_FORMAT = "VOX ";
+    static final String TAG_MAIN = "MAIN";
+    static final String TAG_SIZE = "SIZE";
+    static final String TAG_XYZI = "XYZI";
+    static final String TAG_RGBA = "RGBA";
+    static final String TAG_MATT = "MATT";
+    private static final String TAG_TRANSFORM = "nTRN";
+    private static final String TAG_GROUP = "nGRP";
+    private static final String TAG_SHAPE = "nSHP";
 
-    private static final int VERSION = 150;
+    private static final String KEY_TRANSLATION = "_t";
+    private static final String KEY_ROTATION = "_r";
 
+    private static final int MAX_NODE_DEPTH = 256;
+
+    static final int VERSION = 150;
+
+    // Coordinates within a model are stored as single bytes
+    static final int MAX_COORDINATE = 256;
+
+    private static final int CHUNK_HEADER_SIZE = 12;
+    private static final int SIZE_CHUNK_SIZE = CHUNK_HEADER_SIZE + 12;
+    private static final int RGBA_CHUNK_SIZE = CHUNK_HEADER_SIZE + 1024;
+    // Node id, empty attributes, one model id with empty attributes
+    private static final int SHAPE_CONTENT_SIZE = 20;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // Each writing thread reuses one direct buffer rather than allocating a new one per file.
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    /**
+     * Writes the model to the stream. The chunk sizes are computed up front from the voxel count and materials, so the
+     * data is streamed straight out through a small buffer rather than assembled in memory first.
+     */
     public static void write(VoxModel model, OutputStream outputStream) throws IOException {
-        DataOutputStream out = new DataOutputStream(outputStream);
+        WritableByteChannel channel;
+        if (outputStream instanceof FileOutputStream) {
+            channel = ((FileOutputStream) outputStream).getChannel();
+        } else {
+            channel = Channels.newChannel(outputStream);
+        }
+        write(model, channel);
+        outputStream.flush();
+    }
+
+    public static void write(VoxModel model, WritableByteChannel channel) throws IOException {
+        ChunkWriter out = new ChunkWriter(channel);
+        int mainSize = getModelChunksSize(model) + getPaletteChunksSize(model.getPalette());
+
+        writeHeader(out, mainSize);
+        writeModelChunks(out, model);
+        writePaletteChunks(out, model.getPalette());
+        out.flush();
+    }
+
+    /**
+     * Writes a scene as a single file holding all of its models, positioned with a MagicaVoxel scene graph: a root
+     * transform node with a group beneath it, and under that a transform and shape node for each placed model.
+     */
+    public static void write(VoxScene scene, OutputStream outputStream) throws IOException {
+        WritableByteChannel channel;
+        if (outputStream instanceof FileOutputStream) {
+            channel = ((FileOutputStream) outputStream).getChannel();
+        } else {
+            channel = Channels.newChannel(outputStream);
+        }
+        write(scene, channel);
+        outputStream.flush();
+    }
+
+    public static void write(VoxScene scene, WritableByteChannel channel) throws IOException {
+        ChunkWriter out = new ChunkWriter(channel);
+        int numPlaced = scene.getNumModels();
+
+        // Models placed more than once are only written once
+        IdentityHashMap<VoxModel, Integer> modelIds = new IdentityHashMap<>();
+        ArrayList<VoxModel> models = new ArrayList<>();
+        int[] placedIds = new int[numPlaced];
+        for (int n = 0; n < numPlaced; n++) {
+            VoxModel model = scene.getModel(n);
+            Integer id = modelIds.get(model);
+            if (id == null) {
+                id = models.size();
+                modelIds.put(model, id);
+                models.add(model);
+            }
+            placedIds[n] = id;
+        }
+
+        // MagicaVoxel positions a model by the translation of its center voxel
+        String[] translations = new String[numPlaced];
+        for (int n = 0; n < numPlaced; n++) {
+            VoxModel model = scene.getModel(n);
+            int tx = scene.getOffsetX(n) + model.getSizeX() / 2;
+            int ty = scene.getOffsetY(n) + model.getSizeY() / 2;
+            int tz = scene.getOffsetZ(n) + model.getSizeZ() / 2;
+            translations[n] = tx + " " + ty + " " + tz;
+        }
+
+        int mainSize = getPaletteChunksSize(scene.getPalette());
+        for (VoxModel model : models) {
+            mainSize += getModelChunksSize(model);
+        }
+        mainSize += CHUNK_HEADER_SIZE + getTransformContentSize();
+        mainSize += CHUNK_HEADER_SIZE + 12 + 4 * numPlaced;
+        for (int n = 0; n < numPlaced; n++) {
+            mainSize += CHUNK_HEADER_SIZE + getTransformContentSize(KEY_TRANSLATION, translations[n]);
+            mainSize += CHUNK_HEADER_SIZE + SHAPE_CONTENT_SIZE;
+        }
+
+        writeHeader(out, mainSize);
+        for (VoxModel model : models) {
+            writeModelChunks(out, model);
+        }
+
+        // Root transform, node 0
+        out.writeChunkHeader(TAG_TRANSFORM, getTransformContentSize(), 0);
+        writeTransformContent(out, 0, 1, -1);
+
+        // Group of all placed models, node 1
+        out.writeChunkHeader(TAG_GROUP, 12 + 4 * numPlaced, 0);
+        out.writeInt(1);
+        out.writeDict();
+        out.writeInt(numPlaced);
+        for (int n = 0; n < numPlaced; n++) {
+            out.writeInt(2 + 2 * n);
+        }
+
+        // Transform and shape for each placed model, nodes 2 onwards
+        for (int n = 0; n < numPlaced; n++) {
+            int transformId = 2 + 2 * n;
+            out.writeChunkHeader(TAG_TRANSFORM, getTransformContentSize(KEY_TRANSLATION, translations[n]), 0);
+            writeTransformContent(out, transformId, transformId + 1, 0, KEY_TRANSLATION, translations[n]);
+            out.writeChunkHeader(TAG_SHAPE, SHAPE_CONTENT_SIZE, 0);
+            out.writeInt(transformId + 1);
+            out.writeDict();
+            out.writeInt(1);
+            out.writeInt(placedIds[n]);
+            out.writeDict();
+        }
 
+        writePaletteChunks(out, scene.getPalette());
+        out.flush();
+    }
+
+    private static void writeHeader(ChunkWriter out, int mainSize) throws IOException {
         // Format Tag
-        writeRiffTag(TAG_FORMAT, out);
+        out.writeTag(TAG_FORMAT);
 
         // Format version
-        writeInt(VERSION, out);
+        out.writeInt(VERSION);
 
         // Main Chunk
-        writeRiffTag(TAG_MAIN, out);
-
-        {
-            ByteArrayOutputStream mainBytes = new ByteArrayOutputStream();
-            DataOutputStream mainOut = new DataOutputStream(mainBytes);
-
-            // Size Chunk
-            writeRiffTag(TAG_SIZE, mainOut);
-            // The size of this chunk
-            writeInt(12, mainOut);
-            writeInt(0, mainOut);
-            writeInt(model.getSizeX(), mainOut);
-            writeInt(model.getSizeY(), mainOut);
-            writeInt(model.getSizeZ(), mainOut);
-
-            // XYZI Chunk
-            writeRiffTag(TAG_XYZI, mainOut);
-            ArrayList<Voxel> voxels = model.getVoxels();
-            int voxelChunkSize = 4 + voxels.size() * 4;
-            writeInt(voxelChunkSize, mainOut);
-            writeInt(0, mainOut);
-            writeInt(voxels.size(), mainOut);
-            for (Voxel voxel : voxels) {
-                writeIntoBytes(mainOut, voxel.x, voxel.y, voxel.z, voxel.i);
-            }
+        out.writeChunkHeader(TAG_MAIN, 0, mainSize);
+    }
+
+    private static int getModelChunksSize(VoxModel model) {
+        return SIZE_CHUNK_SIZE + CHUNK_HEADER_SIZE + getVoxelChunkSize(model);
+    }
+
+    private static int getVoxelChunkSize(VoxModel model) {
+        return 4 + model.getVoxels().size() * 4;
+    }
 
-            // RGBA Chunk
-            writeRiffTag(TAG_RGBA, mainOut);
-            writeInt(1024, mainOut);
-            writeInt(0, mainOut);
-            Palette palette = model.getPalette();
-            for (int i = 1; i < 256; i++) {
-                mainOut.writeInt(palette.getColor(i));
+    private static void writeModelChunks(ChunkWriter out, VoxModel model) throws IOException {
+        // Size Chunk
+        out.writeChunkHeader(TAG_SIZE, 12, 0);
+        out.writeInt(model.getSizeX());
+        out.writeInt(model.getSizeY());
+        out.writeInt(model.getSizeZ());
+
+        // XYZI Chunk
+        VoxelBuffer voxels = model.getVoxels();
+        out.writeChunkHeader(TAG_XYZI, getVoxelChunkSize(model), 0);
+        out.writeInt(voxels.size());
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            // Bytes x, y, z, palette index, so x goes in the low byte of the little-endian int
+            out.writeInt(VoxelBuffer.x(voxel) & 0xFF | (VoxelBuffer.y(voxel) & 0xFF) << 8 | (VoxelBuffer.z(voxel) & 0xFF) << 16 | VoxelBuffer.i(voxel) << 24);
+        }
+    }
+
+    private static int getPaletteChunksSize(Palette palette) {
+        int size = RGBA_CHUNK_SIZE;
+        for (int i = 1; i < 256; i++) {
+            Material material = palette.getMaterial(i);
+            if (material.type != 0) {
+                size += CHUNK_HEADER_SIZE + getMaterialChunkSize(material);
             }
-            mainOut.writeInt(0);
-
-            // MATT Chunks
-            for (int i = 1; i < 256; i++) {
-                Material material = model.getMaterial(i);
-                if (material.type != 0) {
-                    writeRiffTag(TAG_MATT, mainOut);
-                    int size = 4 * (4 + material.values.length);
-                    writeInt(size, mainOut);
-                    writeInt(0, mainOut);
-                    writeInt(i, mainOut);
-                    writeInt(material.type, mainOut);
-                    writeFloat(material.weight, mainOut);
-                    writeInt(material.properties, mainOut);
-                    for (int j = 0; j < material.values.length; j++) {
-                        writeFloat(material.values[j], mainOut);
-                    }
+        }
+        return size;
+    }
+
+    private static void writePaletteChunks(ChunkWriter out, Palette palette) throws IOException {
+        // RGBA Chunk
+        out.writeChunkHeader(TAG_RGBA, 1024, 0);
+        for (int i = 1; i < 256; i++) {
+            // Colors are stored as R, G, B, A bytes
+            out.writeInt(Integer.reverseBytes(palette.getColor(i)));
+        }
+        out.writeInt(0);
+
+        // MATT Chunks
+        for (int i = 1; i < 256; i++) {
+            Material material = palette.getMaterial(i);
+            if (material.type != 0) {
+                out.writeChunkHeader(TAG_MATT, getMaterialChunkSize(material), 0);
+                out.writeInt(i);
+                out.writeInt(material.type);
+                out.writeFloat(material.weight);
+                out.writeInt(material.properties);
+                for (int j = 0; j < material.values.length; j++) {
+                    out.writeFloat(material.values[j]);
                 }
             }
+        }
+    }
+
+    private static int getTransformContentSize(String... frame) {
+        // Node id, attributes, child id, reserved id, layer id, frame count, then one frame
+        return 4 + getDictSize() + 16 + getDictSize(frame);
+    }
+
+    private static void writeTransformContent(ChunkWriter out, int id, int childId, int layerId, String... frame) throws IOException {
+        out.writeInt(id);
+        out.writeDict();
+        out.writeInt(childId);
+        out.writeInt(-1);
+        out.writeInt(layerId);
+        out.writeInt(1);
+        out.writeDict(frame);
+    }
 
-            mainOut.flush();
-            byte[] main = mainBytes.toByteArray();
-            writeInt(0, out);
-            writeInt(main.length, out);
-            out.write(main);
+    private static int getDictSize(String... keysAndValues) {
+        int size = 4;
+        for (String s : keysAndValues) {
+            size += 4 + s.length();
         }
+        return size;
     }
 
+    private static int getMaterialChunkSize(Material material) {
+        return 4 * (4 + material.values.length);
+    }
+
+    public static VoxModel read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a model from the stream. The remainder of the stream is read into memory in bulk and then decoded, and an
+     * EOFException is thrown if it ends before the data it declares.
+     */
     public static VoxModel read(InputStream inputStream) throws IOException {
-        DataInputStream in = new DataInputStream(inputStream);
+        return read(readFully(inputStream));
+    }
 
-        // Format Tag
-        String formatTag = readRiffTag(in);
-        if (!formatTag.equals(TAG_FORMAT)) {
-            throw new IOException("Doesn't appear to be in VOX format.");
+    /**
+     * Reads a model from the buffer. If the file holds more than one model they are combined into one, as laid out
+     * by the file's scene graph.
+     */
+    public static VoxModel read(ByteBuffer buffer) throws IOException {
+        return readScene(buffer).toModel();
+    }
+
+    public static VoxScene readScene(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return readScene(readFully(in));
+        } finally {
+            in.close();
         }
+    }
 
-        // Format Version
-        int version = readInt(in);
-        if (version != VERSION) {
-            System.out.println("Warning: expecting version " + VERSION + " but got " + version + ".");
+    /**
+     * Reads every model in the buffer, along with its position from the scene graph (nTRN, nGRP and nSHP chunks) if
+     * there is one. Models in files without a scene graph are all placed at the origin. Only the translation of each
+     * transform node is used, any rotation is ignored. The chunks are first indexed by a {@link VoxFile}, so any that
+     * aren't understood are skipped by their declared size.
+     */
+    public static VoxScene readScene(ByteBuffer buffer) throws IOException {
+        VoxFile file = new VoxFile(buffer);
+        Palette palette = file.getPalette();
+        ArrayList<VoxModel> models = new ArrayList<>(file.getNumModels());
+        for (int n = 0; n < file.getNumModels(); n++) {
+            models.add(file.getModel(n));
+        }
+        // Scene graph nodes by id: transforms map to {child id, x, y, z}, groups and shapes to their children/models
+        HashMap<Integer, int[]> transforms = new HashMap<>();
+        HashMap<Integer, int[]> groups = new HashMap<>();
+        HashMap<Integer, int[]> shapes = new HashMap<>();
+        boolean rotated = false;
+
+        for (VoxFile.Chunk chunk : file.getChunks()) {
+            if (TAG_TRANSFORM.equals(chunk.tag)) {
+                ByteBuffer in = file.getContent(chunk);
+                int id = readInt(in);
+                readDict(in);
+                int childId = readInt(in);
+                skip(in, 8);
+                int numFrames = readInt(in);
+                int[] transform = {childId, 0, 0, 0};
+                for (int f = 0; f < numFrames; f++) {
+                    HashMap<String, String> frame = readDict(in);
+                    String translation = frame.get(KEY_TRANSLATION);
+                    if (f == 0 && translation != null) {
+                        String[] t = translation.trim().split("\\s+");
+                        for (int i = 0; i < 3 && i < t.length; i++) {
+                            transform[i + 1] = Integer.parseInt(t[i]);
+                        }
+                    }
+                    rotated |= frame.containsKey(KEY_ROTATION);
+                }
+                transforms.put(id, transform);
+            } else if (TAG_GROUP.equals(chunk.tag)) {
+                ByteBuffer in = file.getContent(chunk);
+                int id = readInt(in);
+                readDict(in);
+                int[] children = new int[readInt(in)];
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = readInt(in);
+                }
+                groups.put(id, children);
+            } else if (TAG_SHAPE.equals(chunk.tag)) {
+                ByteBuffer in = file.getContent(chunk);
+                int id = readInt(in);
+                readDict(in);
+                int[] modelIds = new int[readInt(in)];
+                for (int i = 0; i < modelIds.length; i++) {
+                    modelIds[i] = readInt(in);
+                    readDict(in);
+                }
+                shapes.put(id, modelIds);
+            }
         }
 
-        // Main Chunk
-        String chunkTag = readRiffTag(in);
-        if (!chunkTag.equals(TAG_MAIN)) {
-            throw new IOException("Should be a " + TAG_MAIN + " tag here.");
-        }
-        skip(in, 8);
-
-        // Optional pack chunk
-        int numModels = 1;
-        String tag = readRiffTag(in);
-        if (tag.equals(TAG_PACK)) {
-            skip(in, 8);
-            numModels = readInt(in);
-            tag = readRiffTag(in);
-        }
-
-        // todo, eventually deal with more than one model, for now just load the first
-        // Size chunk
-        if (!tag.equals(TAG_SIZE)) {
-            throw new IOException("Should be a " + TAG_SIZE + " tag here.");
-        }
-        skip(in, 8);
-        int sizeX = readInt(in);
-        int sizeY = readInt(in);
-        int sizeZ = readInt(in);
-
-        // Voxel data chunk
-        String xyziTag = readRiffTag(in);
-        if (!xyziTag.equals(TAG_XYZI)) {
-            throw new IOException("Should be a " + TAG_XYZI + " tag here.");
-        }
-        skip(in, 8);
-        int numVoxels = readInt(in);
-        VoxModel model = new VoxModel(sizeX, sizeY, sizeZ);
-        byte[] voxel = new byte[4];
-        for (int i = 0; i < numVoxels; i++) {
-            readIntoBytes(in, voxel);
-            int x = Byte.toUnsignedInt(voxel[0]);
-            int y = Byte.toUnsignedInt(voxel[1]);
-            int z = Byte.toUnsignedInt(voxel[2]);
-            int p = Byte.toUnsignedInt(voxel[3]);
-            model.addVoxel(x, y, z, p);
-            // System.out.println("Voxel x=" + x + ", y=" + y + ", z=" + z + ", p=" + p);
-        }
-
-        // Palette/Material chunk
-        while (true) {
-            tag = null;
-            try {
-                tag = readRiffTag(in);
-            } catch (EOFException eof) {
-                // No palette or material data, just skip this section.
+        if (rotated) {
+            System.err.println("Warning: ignoring rotations in the scene graph.");
+        }
+        VoxScene scene = new VoxScene(palette);
+        if (transforms.containsKey(0)) {
+            placeNode(scene, models, transforms, groups, shapes, 0, 0, 0, 0, 0);
+        } else {
+            for (VoxModel model : models) {
+                scene.addModel(model, 0, 0, 0);
             }
-            if (tag != null) {
-                if (TAG_RGBA.equals(tag)) {
-                    skip(in, 8);
-                    for (int i = 0; i < 255; i++) {
-                        int c = in.readInt();
-                        model.setColor(i + 1, c);
-                    }
-                } else if (TAG_MATT.equals(tag)) {
-                    int numValues = readInt(in)/4 - 4;
-                    skip(in, 4);
-                    int index = readInt(in);
-                    Material material = model.getMaterial(index);
-                    material.type = readInt(in);
-                    material.weight = readFloat(in);
-                    material.properties = readInt(in);
-                    material.values = new float[numValues];
-                    for (int i = 0; i < numValues; i++) {
-                        material.values[i] = readFloat(in);
-                    }
+        }
+        return scene;
+    }
+
+    private static void placeNode(VoxScene scene, ArrayList<VoxModel> models, HashMap<Integer, int[]> transforms, HashMap<Integer, int[]> groups,
+                                  HashMap<Integer, int[]> shapes, int id, int x, int y, int z, int depth) throws IOException {
+        if (depth > MAX_NODE_DEPTH) {
+            throw new IOException("Scene graph is too deep, it may contain a cycle.");
+        }
+        if (transforms.containsKey(id)) {
+            int[] transform = transforms.get(id);
+            placeNode(scene, models, transforms, groups, shapes, transform[0], x + transform[1], y + transform[2], z + transform[3], depth + 1);
+        } else if (groups.containsKey(id)) {
+            for (int child : groups.get(id)) {
+                placeNode(scene, models, transforms, groups, shapes, child, x, y, z, depth + 1);
+            }
+        } else if (shapes.containsKey(id)) {
+            for (int modelId : shapes.get(id)) {
+                if (modelId < 0 || modelId >= models.size()) {
+                    throw new IOException("Shape node " + id + " refers to missing model " + modelId + ".");
                 }
-            } else {
-                break;
+                // The translation is of the model's center voxel
+                VoxModel model = models.get(modelId);
+                scene.addModel(model, x - model.getSizeX() / 2, y - model.getSizeY() / 2, z - model.getSizeZ() / 2);
             }
         }
-        return model;
     }
 
-    private static String readRiffTag(DataInputStream in) throws IOException {
-        char[] c = new char[4];
-        for (int i = 0; i < 4; i++) {
-            c[i] = (char) in.readByte();
+    private static HashMap<String, String> readDict(ByteBuffer in) throws IOException {
+        HashMap<String, String> dict = new HashMap<>();
+        int numPairs = readInt(in);
+        for (int i = 0; i < numPairs; i++) {
+            String key = readString(in);
+            dict.put(key, readString(in));
         }
-        return new String(c);
+        return dict;
     }
 
-    private static void writeRiffTag(String tag, DataOutputStream out) throws IOException {
-        byte[] bytes = tag.getBytes();
-        out.write(bytes);
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readInt(in);
+        require(in, length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private static int readInt(DataInputStream in) throws IOException {
-        int i = in.readInt();
-        return (i&0xff)<<24 | (i&0xff00)<<8 | (i&0xff0000)>>8 | (i>>24)&0xff;
+    private static ByteBuffer readFully(InputStream inputStream) throws IOException {
+        if (inputStream instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) inputStream).getChannel();
+            long remaining = channel.size() - channel.position();
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to be a .vox model.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) remaining);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("File ended after " + buffer.position() + " of " + remaining + " bytes.");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[64 * 1024];
+            int n;
+            while ((n = inputStream.read(chunk)) >= 0) {
+                bytes.write(chunk, 0, n);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
     }
 
-    private static void writeInt(int i, DataOutputStream out) throws IOException {
-        out.writeInt((i&0xff)<<24 | (i&0xff00)<<8 | (i&0xff0000)>>8 | (i>>24)&0xff);
+    static void require(ByteBuffer in, long numBytes) throws EOFException {
+        if (numBytes < 0 || in.remaining() < numBytes) {
+            throw new EOFException("Expected " + numBytes + " more bytes but only " + in.remaining() + " remain.");
+        }
     }
 
-    private static float readFloat(DataInputStream in) throws IOException {
-        int i = in.readInt();
-        return Float.intBitsToFloat((i&0xff)<<24 | (i&0xff00)<<8 | (i&0xff0000)>>8 | (i>>24)&0xff);
+    static String readRiffTag(ByteBuffer in) throws IOException {
+        require(in, 4);
+        char[] c = new char[4];
+        for (int i = 0; i < 4; i++) {
+            c[i] = (char) in.get();
+        }
+        return new String(c);
     }
 
-    private static void writeFloat(float v, DataOutputStream out) throws IOException {
-        int i = Float.floatToIntBits(v);
-        out.writeInt((i&0xff)<<24 | (i&0xff00)<<8 | (i&0xff0000)>>8 | (i>>24)&0xff);
+    static int readInt(ByteBuffer in) throws IOException {
+        require(in, 4);
+        return in.getInt();
     }
 
-    private static void readIntoBytes(DataInputStream in, byte[] bytes) throws IOException {
-        in.read(bytes);
+    static float readFloat(ByteBuffer in) throws IOException {
+        require(in, 4);
+        return in.getFloat();
     }
 
-    private static void writeIntoBytes(DataOutputStream out, int a, int b, int c, int d) throws IOException {
-        byte[] bytes = new byte[4];
-        int[] v = {a, b, c, d};
-        for (int i = 0; i < 4; i++) {
-            bytes[i] = (byte)(v[i] & 0xFF);
-        }
-        out.write(bytes);
+    static void skip(ByteBuffer in, int numBytes) throws IOException {
+        require(in, numBytes);
+        in.position(in.position() + numBytes);
     }
 
-    private static void skip(DataInputStream in, int numBytes) throws IOException {
-        for (int i = 0; i < numBytes; i++) {
-            in.readByte();
+    /**
+     * Writes little-endian chunk data to a channel through a reusable buffer.
+     */
+    private static class ChunkWriter {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+
+        ChunkWriter(WritableByteChannel channel) {
+            this.channel = channel;
+            buffer = WRITE_BUFFER.get();
+            buffer.clear();
+        }
+
+        void writeTag(String tag) throws IOException {
+            ensureRoom(4);
+            for (int i = 0; i < 4; i++) {
+                buffer.put((byte) tag.charAt(i));
+            }
+        }
+
+        void writeChunkHeader(String tag, int contentSize, int childrenSize) throws IOException {
+            writeTag(tag);
+            writeInt(contentSize);
+            writeInt(childrenSize);
+        }
+
+        void writeString(String s) throws IOException {
+            writeInt(s.length());
+            ensureRoom(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                buffer.put((byte) s.charAt(i));
+            }
+        }
+
+        void writeDict(String... keysAndValues) throws IOException {
+            writeInt(keysAndValues.length / 2);
+            for (String s : keysAndValues) {
+                writeString(s);
+            }
+        }
+
+        void writeInt(int i) throws IOException {
+            ensureRoom(4);
+            buffer.putInt(i);
+        }
+
+        void writeFloat(float v) throws IOException {
+            ensureRoom(4);
+            buffer.putFloat(v);
         }
+
+        private void ensureRoom(int numBytes) throws IOException {
+            if (buffer.remaining() < numBytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
     }
 
     public static void main(String[] args) throws Exception {
-        FileInputStream in = new FileInputStream("vox/test_materials.vox");
-        VoxModel model = read(in);
+        VoxModel model = read(new File("vox/test_materials.vox"));
         FileOutputStream out = new FileOutputStream("vox/test_roundtrip.vox");
         write(model, out);
         out.close();
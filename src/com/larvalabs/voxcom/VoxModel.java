@@ -1,7 +1,22 @@
 package com.larvalabs.voxcom;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Represents a .vox voxel model.
@@ -10,11 +25,35 @@ import java.util.ArrayList;
  */
 public class VoxModel {
 
+    // The number of voxels transformed by each task when compositing in parallel.
+    private static final int TRANSFORM_TASK_SIZE = 64 * 1024;
+
+    // The most transformed copies kept to be moved into place when adding copies of a model.
+    private static final int MAX_COPY_SOURCES = 8;
+
+    // The most tile files written at once when splitting a model into tiles.
+    private static final int MAX_TILE_WRITERS = 8;
+
+    // The bits of an occupancy word at x = 0 and at x = 15, for each of the four rows of 16 that it holds.
+    private static final long ROWS_LOW_X = 0x0001000100010001L;
+    private static final long ROWS_HIGH_X = 0x8000800080008000L;
+    private static final long[] EMPTY_OCCUPANCY = new long[VoxelIndex.BRICK_CELLS / 64];
+
+    private static final int[] NO_COLORS = new int[256];
+
     private int sizeX, sizeY, sizeZ;
 
+    // Voxels at or beyond this coordinate on any axis are dropped.
+    private int maxSize = Voxcom.MAX_SIZE_VOX;
+
     private Palette palette = new Palette();
 
-    private ArrayList<Voxel> voxels = new ArrayList<>();
+    private VoxelBuffer voxels = new VoxelBuffer();
+
+    // Built on demand, maps each filled coordinate to its position in the voxel buffer.
+    private VoxelIndex index;
+
+    private boolean readOnly;
 
     public VoxModel(int sizeX, int sizeY, int sizeZ) {
         this.sizeX = sizeX;
@@ -23,6 +62,7 @@ public class VoxModel {
     }
 
     public void setColor(int index, int color) {
+        checkWritable();
         palette.setColor(index, color);
     }
 
@@ -30,13 +70,84 @@ public class VoxModel {
         return palette.getMaterial(index);
     }
 
+    /**
+     * Adds a voxel to the model. If there is already a voxel at that coordinate, its color is replaced, so that the
+     * last voxel written to a position wins.
+     */
     public void addVoxel(int x, int y, int z, int i) {
-        if (x >= 0 && x < Voxcom.maxSize && y >= 0 && y < Voxcom.maxSize && z >= 0 && z < Voxcom.maxSize) {
-            voxels.add(new Voxel(x, y, z, i));
+        checkWritable();
+        if (x >= 0 && x < maxSize && y >= 0 && y < maxSize && z >= 0 && z < maxSize) {
+            int existing = getIndex().putIfAbsent(x, y, z, voxels.size());
+            if (existing >= 0) {
+                voxels.setIndex(existing, i);
+            } else {
+                voxels.add(x, y, z, i);
+            }
+        }
+        palette.setUsed(i);
+    }
+
+    /**
+     * Adds a voxel without looking for one already at that coordinate, for decoders that have already checked that
+     * their input doesn't repeat a position, so that reading a model doesn't build its index. Voxels beyond the
+     * maximum size are still dropped.
+     */
+    void appendVoxel(int x, int y, int z, int i) {
+        if (index != null) {
+            addVoxel(x, y, z, i);
+            return;
+        }
+        checkWritable();
+        if (x >= 0 && x < maxSize && y >= 0 && y < maxSize && z >= 0 && z < maxSize) {
+            voxels.add(x, y, z, i);
         }
         palette.setUsed(i);
     }
 
+    /**
+     * @return the palette index of the voxel at the given coordinate, or 0 if it is empty.
+     */
+    public int get(int x, int y, int z) {
+        int position = getIndex().get(x, y, z);
+        return position >= 0 ? voxels.getIndex(position) : 0;
+    }
+
+    public boolean isSet(int x, int y, int z) {
+        return getIndex().isSet(x, y, z);
+    }
+
+    private VoxelIndex getIndex() {
+        if (readOnly) {
+            return getSharedIndex();
+        }
+        if (index == null) {
+            index = buildIndex();
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of a read-only model, which other threads may be looking up at the same time, so it's built
+     * under the model's lock and doesn't cache the last brick looked up.
+     */
+    private synchronized VoxelIndex getSharedIndex() {
+        if (index == null) {
+            VoxelIndex index = buildIndex();
+            index.share();
+            this.index = index;
+        }
+        return index;
+    }
+
+    private VoxelIndex buildIndex() {
+        VoxelIndex index = new VoxelIndex();
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            index.put(VoxelBuffer.x(voxel), VoxelBuffer.y(voxel), VoxelBuffer.z(voxel), n);
+        }
+        return index;
+    }
+
     public int getSizeX() {
         return sizeX;
     }
@@ -49,11 +160,48 @@ public class VoxModel {
         return sizeZ;
     }
 
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the limit on the coordinates of this model: voxels added at or beyond it on any axis are dropped, and
+     * scaling doesn't grow the model past it.
+     */
+    public void setMaxSize(int maxSize) {
+        checkWritable();
+        this.maxSize = maxSize;
+    }
+
     public Palette getPalette() {
         return palette;
     }
 
-    public ArrayList<Voxel> getVoxels() {
+    void setPalette(Palette palette) {
+        this.palette = palette;
+    }
+
+    /**
+     * Prevents any further changes to the model, so that it can be safely shared, for example by the
+     * {@link ModelCache}. The index is dropped, since a shared model is never written again, and is only built again,
+     * safely for concurrent readers, if the model is looked up by coordinate.
+     */
+    public synchronized void makeReadOnly() {
+        readOnly = true;
+        index = null;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("This model is read-only.");
+        }
+    }
+
+    public VoxelBuffer getVoxels() {
         return voxels;
     }
 
@@ -62,142 +210,954 @@ public class VoxModel {
     }
 
     public void scale(int f) {
+        checkWritable();
         if (f == 1) {
             return;
         } else {
-            ArrayList<Voxel> oldVoxels = voxels;
-            voxels = new ArrayList<>();
-            for (Voxel voxel : oldVoxels) {
-                int x = voxel.x * f;
-                int y = voxel.y * f;
-                int z = voxel.z * f;
+            VoxelBuffer oldVoxels = voxels;
+            voxels = new VoxelBuffer(oldVoxels.size() * f * f * f);
+            index = null;
+            for (int n = 0; n < oldVoxels.size(); n++) {
+                long voxel = oldVoxels.get(n);
+                int x = VoxelBuffer.x(voxel) * f;
+                int y = VoxelBuffer.y(voxel) * f;
+                int z = VoxelBuffer.z(voxel) * f;
+                int i = VoxelBuffer.i(voxel);
                 for (int dx = 0; dx < f; dx++) {
                     for (int dy = 0; dy < f; dy++) {
                         for (int dz = 0; dz < f; dz++) {
-                            addVoxel(x + dx, y + dy, z + dz, voxel.i);
+                            addVoxel(x + dx, y + dy, z + dz, i);
                         }
                     }
                 }
             }
-            sizeX = Math.min(sizeX * f, Voxcom.maxSize);
-            sizeY = Math.min(sizeY * f, Voxcom.maxSize);
-            sizeZ = Math.min(sizeZ * f, Voxcom.maxSize);
+            sizeX = Math.min(sizeX * f, maxSize);
+            sizeY = Math.min(sizeY * f, maxSize);
+            sizeZ = Math.min(sizeZ * f, maxSize);
         }
     }
 
     public void add(VoxModel model, float x, float y, float z, boolean centerX, boolean centerY, boolean centerZ, boolean flipX, boolean flipY, boolean flipZ, int rotateX, int rotateY, int rotateZ) {
-        palette.merge(model);
-        float[][] rot = new float[3][3];
-        rot[0][0] = cos(rotateY) * cos(rotateZ);
-        rot[0][1] = cos(rotateZ) * sin(rotateX) * sin(rotateY) - cos(rotateX) * sin(rotateZ);
-        rot[0][2] = cos(rotateX) * cos(rotateZ) * sin(rotateY) + sin(rotateX) * sin(rotateZ);
-        rot[1][0] = cos(rotateY) * sin(rotateZ);
-        rot[1][1] = cos(rotateX) * cos(rotateZ) + sin(rotateX) * sin(rotateY) * sin(rotateZ);
-        rot[1][2] = cos(rotateX) * sin(rotateY) * sin(rotateZ) - cos(rotateZ) * sin(rotateX);
-        rot[2][0] = -sin(rotateY);
-        rot[2][1] = cos(rotateY) * sin(rotateX);
-        rot[2][2] = cos(rotateX) * cos(rotateY);
-        for (Voxel voxel : model.voxels) {
-            int vx = flipX ? model.sizeX - voxel.x - 1 : voxel.x;
-            int vy = flipY ? model.sizeY - voxel.y - 1 : voxel.y;
-            int vz = flipZ ? model.sizeZ - voxel.z - 1 : voxel.z;
-            float fx = vx - model.sizeX/2f;
-            float fy = vy - model.sizeY/2f;
-            float fz = vz - model.sizeZ/2f;
-            int rx = (int) (rot[0][0] * fx + rot[0][1] * fy + rot[0][2] * fz + (centerX ? 1 : model.sizeX / 2f) + x);
-            int ry = (int) (rot[1][0] * fx + rot[1][1] * fy + rot[1][2] * fz + (centerY ? 1 : model.sizeY / 2f) + y);
-            int rz = (int) (rot[2][0] * fx + rot[2][1] * fy + rot[2][2] * fz + (centerZ ? 1 : model.sizeZ / 2f) + z);
-            if (rx >= 0 && rx <= Voxcom.maxSize && ry >= 0 && ry <= Voxcom.maxSize && rz >= 0 && rz <= Voxcom.maxSize) {
-                addVoxel(rx, ry, rz, voxel.i);
+        add(model, new Placement(x, y, z, centerX, centerY, centerZ, flipX, flipY, flipZ, rotateX, rotateY, rotateZ));
+    }
+
+    /**
+     * Adds a model to this one, combining them by the placement's {@link Operation}. A union is transformed and added
+     * a chunk of voxels at a time, so that a scaled model never needs a buffer for all of its scaled voxels at once.
+     * The other operations need all of them to build their mask.
+     */
+    public void add(VoxModel model, Placement placement) {
+        int[] remap = merge(model, placement.operation);
+        if (placement.operation != Operation.UNION) {
+            combine(transform(model, placement, remap), placement.operation);
+            return;
+        }
+        InstanceTransform transform = getTransform(model, placement);
+        int chunkSize = getUnionChunkSize(placement);
+        int numVoxels = model.voxels.size();
+        VoxelBuffer transformed = newChunkBuffer(placement, numVoxels);
+        for (int start = 0; start < numVoxels; start += chunkSize) {
+            transformed.clear();
+            transform.apply(model.voxels, start, Math.min(start + chunkSize, numVoxels), remap, transformed);
+            addVoxels(transformed);
+        }
+    }
+
+    /**
+     * Adds several copies of a model, with the same result as adding each in turn. The palette is merged once, and a
+     * copy placed exactly a whole number of voxels away from an earlier one, with the same orientation and scale, is
+     * made by moving that one's transformed voxels in bulk rather than transforming the model again. The placements
+     * should all have the same operation.
+     *
+     * @return the number of transformed voxels combined into this model, across all of the copies.
+     */
+    public long addCopies(VoxModel model, List<Placement> placements) {
+        Operation operation = placements.get(0).operation;
+        int[] remap = merge(model, operation);
+        int scale = Math.max(placements.get(0).scale, 1);
+        long complete = (long) model.voxels.size() * scale * scale * scale;
+        // Moving transformed voxels is only exact if none of the model's voxels lie outside its size, as those aren't
+        // covered by the transform's tables
+        boolean withinSize = model.isWithinSize();
+        ArrayList<InstanceTransform> transforms = new ArrayList<>();
+        ArrayList<VoxelBuffer> transformed = new ArrayList<>();
+        ArrayList<int[]> bounds = new ArrayList<>();
+        long total = 0;
+        for (Placement placement : placements) {
+            InstanceTransform transform = new InstanceTransform(model, placement, maxSize);
+            VoxelBuffer voxels = null;
+            for (int b = 0; b < transforms.size() && voxels == null; b++) {
+                int[] offset = transforms.get(b).getOffset(transform);
+                if (offset != null) {
+                    voxels = translate(transformed.get(b), bounds.get(b), offset);
+                }
             }
+            if (voxels == null) {
+                voxels = new VoxelBuffer((int) Math.min(complete, Integer.MAX_VALUE - 8));
+                transform.apply(model.voxels, 0, model.voxels.size(), remap, voxels);
+                // Only copies that lost no voxels at the edges can be moved, and only a few are kept, one for each
+                // orientation in a rotation cycle
+                if (withinSize && voxels.size() == complete && transforms.size() < MAX_COPY_SOURCES) {
+                    transforms.add(transform);
+                    transformed.add(voxels);
+                    bounds.add(getBounds(voxels));
+                }
+            }
+            total += voxels.size();
+            combine(voxels, operation);
+        }
+        return total;
+    }
+
+    /**
+     * @return the voxels moved by the offset, dropping any that then lie outside of 0 to maxSize on any axis, as
+     * transforming them there would have.
+     */
+    private VoxelBuffer translate(VoxelBuffer voxels, int[] bounds, int[] offset) {
+        boolean inside = true;
+        for (int k = 0; k < 3; k++) {
+            inside &= bounds[k] + offset[k] >= 0 && bounds[k + 3] + offset[k] <= maxSize;
+        }
+        if (inside) {
+            return voxels.translate(offset[0], offset[1], offset[2]);
+        }
+        VoxelBuffer moved = new VoxelBuffer(voxels.size());
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            int x = VoxelBuffer.x(voxel) + offset[0];
+            int y = VoxelBuffer.y(voxel) + offset[1];
+            int z = VoxelBuffer.z(voxel) + offset[2];
+            if (x >= 0 && x <= maxSize && y >= 0 && y <= maxSize && z >= 0 && z <= maxSize) {
+                moved.add(x, y, z, VoxelBuffer.i(voxel));
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @return the lowest coordinates of the voxels along X, Y and Z, followed by the highest.
+     */
+    private static int[] getBounds(VoxelBuffer voxels) {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1, -1};
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            for (int k = 0; k < 3; k++) {
+                int c = VoxelBuffer.coordinate(voxel, k);
+                bounds[k] = Math.min(bounds[k], c);
+                bounds[k + 3] = Math.max(bounds[k + 3], c);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @return true if every voxel lies within the size of the model.
+     */
+    private boolean isWithinSize() {
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            if (VoxelBuffer.x(voxel) >= sizeX || VoxelBuffer.y(voxel) >= sizeY || VoxelBuffer.z(voxel) >= sizeZ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the model's palette into this one's, unless the operation doesn't use the model's colors, in which case
+     * the palette is left alone and every color maps to 0.
+     *
+     * @return the table mapping each palette index of the model to one in this model's palette.
+     */
+    int[] merge(VoxModel model, Operation operation) {
+        return operation.usesColors() ? palette.merge(model) : NO_COLORS;
+    }
+
+    /**
+     * @return the voxels of the model as placed in this one, with their palette indices remapped by the given table,
+     * ready to be added.
+     */
+    VoxelBuffer transform(VoxModel model, Placement placement, int[] remap) {
+        int scale = Math.max(placement.scale, 1);
+        long complete = (long) model.voxels.size() * scale * scale * scale;
+        VoxelBuffer transformed = new VoxelBuffer((int) Math.min(complete, Integer.MAX_VALUE - 8));
+        getTransform(model, placement).apply(model.voxels, 0, model.voxels.size(), remap, transformed);
+        return transformed;
+    }
+
+    /**
+     * @return the transform that places the model's voxels in this one.
+     */
+    InstanceTransform getTransform(VoxModel model, Placement placement) {
+        return new InstanceTransform(model, placement, maxSize);
+    }
+
+    /**
+     * @return the number of a model's voxels to transform at a time when adding it by union, so that each chunk's
+     * scaled voxels fit in a buffer about the size of a parallel transform task.
+     */
+    static int getUnionChunkSize(Placement placement) {
+        long scale = Math.max(placement.scale, 1);
+        return (int) Math.max(TRANSFORM_TASK_SIZE / (scale * scale * scale), 1);
+    }
+
+    /**
+     * @return a buffer for the transformed voxels of one chunk of a model with the given number of voxels.
+     */
+    static VoxelBuffer newChunkBuffer(Placement placement, int numVoxels) {
+        long scale = Math.max(placement.scale, 1);
+        return new VoxelBuffer((int) Math.min(Math.min(numVoxels, getUnionChunkSize(placement)) * scale * scale * scale, TRANSFORM_TASK_SIZE));
+    }
+
+    /**
+     * Adds a list of models to this one, with the same result as adding each in turn. The palettes are merged first,
+     * in order, and then the voxels of all of the models are transformed in parallel on the given pool. The
+     * transformed voxels are then added in their original order. Models placed with an operation other than union
+     * split the list into runs, and are applied in turn between them.
+     */
+    public void addAll(List<VoxModel> models, List<Placement> placements, ForkJoinPool pool) throws InterruptedException {
+        int start = 0;
+        for (int m = 0; m <= models.size(); m++) {
+            if (m == models.size() || placements.get(m).operation != Operation.UNION) {
+                unionAll(models.subList(start, m), placements.subList(start, m), pool);
+                if (m < models.size()) {
+                    add(models.get(m), placements.get(m));
+                }
+                start = m + 1;
+            }
+        }
+    }
+
+    private void unionAll(List<VoxModel> models, List<Placement> placements, ForkJoinPool pool) throws InterruptedException {
+        ArrayList<Callable<VoxelBuffer>> tasks = new ArrayList<>();
+        for (int m = 0; m < models.size(); m++) {
+            final VoxModel model = models.get(m);
+            final InstanceTransform transform = new InstanceTransform(model, placements.get(m), maxSize);
+            final int[] remap = palette.merge(model);
+            int numVoxels = model.voxels.size();
+            for (int start = 0; start < numVoxels; start += TRANSFORM_TASK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + TRANSFORM_TASK_SIZE, numVoxels);
+                tasks.add(new Callable<VoxelBuffer>() {
+                    @Override
+                    public VoxelBuffer call() {
+                        VoxelBuffer transformed = new VoxelBuffer(to - from);
+                        transform.apply(model.voxels, from, to, remap, transformed);
+                        return transformed;
+                    }
+                });
+            }
+        }
+        List<Future<VoxelBuffer>> results = pool.invokeAll(tasks);
+        for (int n = 0; n < results.size(); n++) {
+            try {
+                addVoxels(results.get(n).get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to transform model.", e.getCause());
+            }
+            results.set(n, null);
+        }
+    }
+
+    void addVoxels(VoxelBuffer buffer) {
+        for (int n = 0; n < buffer.size(); n++) {
+            long voxel = buffer.get(n);
+            addVoxel(VoxelBuffer.x(voxel), VoxelBuffer.y(voxel), VoxelBuffer.z(voxel), VoxelBuffer.i(voxel));
+        }
+    }
+
+    /**
+     * Combines voxels already transformed into this model by the given operation.
+     */
+    void combine(VoxelBuffer transformed, Operation operation) {
+        if (operation == Operation.UNION) {
+            addVoxels(transformed);
+            return;
+        }
+        checkWritable();
+        // The transformed voxels as occupancy bitsets, in bricks lined up with those of this model's index
+        VoxelIndex mask = new VoxelIndex();
+        for (int n = 0; n < transformed.size(); n++) {
+            long voxel = transformed.get(n);
+            int x = VoxelBuffer.x(voxel);
+            int y = VoxelBuffer.y(voxel);
+            int z = VoxelBuffer.z(voxel);
+            if (x < maxSize && y < maxSize && z < maxSize) {
+                mask.put(x, y, z, n);
+            }
+        }
+        VoxelIndex index = getIndex();
+        if (operation == Operation.PAINT) {
+            // Only colors change, so the index stays valid
+            for (VoxelIndex.Brick brick : mask.getBricks()) {
+                VoxelIndex.Brick target = index.findBrick(brick.key);
+                if (target == null) {
+                    continue;
+                }
+                for (int w = 0; w < brick.occupancy.length; w++) {
+                    long bits = target.occupancy[w] & brick.occupancy[w];
+                    while (bits != 0) {
+                        int cell = w << 6 | Long.numberOfTrailingZeros(bits);
+                        int i = transformed.getIndex(brick.positions[cell]);
+                        voxels.setIndex(target.positions[cell], i);
+                        palette.setUsed(i);
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            return;
+        }
+        long[] removed = new long[(voxels.size() + 63) >>> 6];
+        int count = 0;
+        if (operation == Operation.SUBTRACT) {
+            // Only the bricks the mask touches can lose voxels
+            for (VoxelIndex.Brick brick : mask.getBricks()) {
+                VoxelIndex.Brick target = index.findBrick(brick.key);
+                if (target != null) {
+                    for (int w = 0; w < brick.occupancy.length; w++) {
+                        count += markRemoved(target, w, target.occupancy[w] & brick.occupancy[w], removed);
+                    }
+                }
+            }
+        } else {
+            // Bricks the mask doesn't touch are emptied entirely
+            for (VoxelIndex.Brick target : index.getBricks()) {
+                long[] keep = occupancy(mask.findBrick(target.key));
+                for (int w = 0; w < keep.length; w++) {
+                    count += markRemoved(target, w, target.occupancy[w] & ~keep[w], removed);
+                }
+            }
+        }
+        removeVoxels(removed, count);
+    }
+
+    /**
+     * Sets the bit for the buffer position of each voxel of the brick in the given word of bits.
+     *
+     * @return the number of voxels marked.
+     */
+    private static int markRemoved(VoxelIndex.Brick brick, int w, long bits, long[] removed) {
+        int count = Long.bitCount(bits);
+        while (bits != 0) {
+            int position = brick.positions[w << 6 | Long.numberOfTrailingZeros(bits)];
+            removed[position >>> 6] |= 1L << position;
+            bits &= bits - 1;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the voxels whose buffer positions are set in the given bits, keeping the order of the rest.
+     */
+    private void removeVoxels(long[] removed, int count) {
+        if (count > 0) {
+            VoxelBuffer remaining = new VoxelBuffer(voxels.size() - count);
+            for (int n = 0; n < voxels.size(); n++) {
+                if ((removed[n >>> 6] & (1L << n)) == 0) {
+                    remaining.add(voxels.get(n));
+                }
+            }
+            voxels = remaining;
+            this.index = null;
         }
     }
 
     public void clipToVoxels() {
-        for (Voxel voxel : voxels) {
-            sizeX = Math.max(sizeX, voxel.x + 1);
-            sizeY = Math.max(sizeY, voxel.y + 1);
-            sizeZ = Math.max(sizeZ, voxel.z + 1);
+        checkWritable();
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            sizeX = Math.max(sizeX, VoxelBuffer.x(voxel) + 1);
+            sizeY = Math.max(sizeY, VoxelBuffer.y(voxel) + 1);
+            sizeZ = Math.max(sizeZ, VoxelBuffer.z(voxel) + 1);
         }
     }
 
-    private static int sin(int angle) {
-        switch (angle) {
-            case 90:
-                return 1;
-            case 180:
-                return 0;
-            case 270:
-                return -1;
+    /**
+     * Removes every voxel whose six neighbors are all filled, since it can't be seen. The occupancy bitsets of the
+     * index are tested a word at a time, and each slab of bricks along Z is handled as a separate task on the given
+     * pool. The remaining voxels keep their order.
+     *
+     * @return the number of voxels removed.
+     */
+    public int cullHidden(ForkJoinPool pool) throws InterruptedException {
+        checkWritable();
+        final VoxelIndex index = getIndex();
+        TreeMap<Integer, List<VoxelIndex.Brick>> slabs = new TreeMap<>();
+        for (VoxelIndex.Brick brick : index.getBricks()) {
+            int bz = VoxelIndex.brickCoordinate(brick.key, 2);
+            List<VoxelIndex.Brick> slab = slabs.get(bz);
+            if (slab == null) {
+                slab = new ArrayList<>();
+                slabs.put(bz, slab);
+            }
+            slab.add(brick);
         }
-        return 0;
+        ArrayList<Callable<int[]>> tasks = new ArrayList<>();
+        for (final List<VoxelIndex.Brick> slab : slabs.values()) {
+            tasks.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    // The buffer positions of the hidden voxels, of which there can't be more than are in the slab
+                    int filled = 0;
+                    for (VoxelIndex.Brick brick : slab) {
+                        for (long bits : brick.occupancy) {
+                            filled += Long.bitCount(bits);
+                        }
+                    }
+                    int[] hidden = new int[filled];
+                    int numHidden = 0;
+                    for (VoxelIndex.Brick brick : slab) {
+                        numHidden = findHidden(index, brick, hidden, numHidden);
+                    }
+                    return Arrays.copyOf(hidden, numHidden);
+                }
+            });
+        }
+        long[] removed = new long[(voxels.size() + 63) >>> 6];
+        int count = 0;
+        for (Future<int[]> result : pool.invokeAll(tasks)) {
+            int[] hidden;
+            try {
+                hidden = result.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Failed to cull voxels.", e.getCause());
+            }
+            for (int position : hidden) {
+                removed[position >>> 6] |= 1L << position;
+            }
+            count += hidden.length;
+        }
+        removeVoxels(removed, count);
+        return count;
+    }
+
+    /**
+     * Stores the buffer position of each voxel in the brick that is surrounded on all six sides into the given array,
+     * after the positions already there. Each word of the occupancy bitset holds four rows along X of one Z layer, so
+     * the neighbors along X are a shift by one, along Y a shift by a row, and along Z the word four away, borrowing
+     * from the adjacent bricks at the edges.
+     *
+     * @return the count of positions stored, including those already there.
+     */
+    private static int findHidden(VoxelIndex index, VoxelIndex.Brick brick, int[] hidden, int numHidden) {
+        long[] occupancy = brick.occupancy;
+        long[] lowX = occupancy(index.neighbor(brick, 0, -1));
+        long[] highX = occupancy(index.neighbor(brick, 0, 1));
+        long[] lowY = occupancy(index.neighbor(brick, 1, -1));
+        long[] highY = occupancy(index.neighbor(brick, 1, 1));
+        long[] lowZ = occupancy(index.neighbor(brick, 2, -1));
+        long[] highZ = occupancy(index.neighbor(brick, 2, 1));
+        int last = occupancy.length - 1;
+        for (int w = 0; w <= last; w++) {
+            long bits = occupancy[w];
+            if (bits == 0) {
+                continue;
+            }
+            bits &= (bits << 1 & ~ROWS_LOW_X) | (lowX[w] >>> 15 & ROWS_LOW_X);
+            bits &= (occupancy[w] >>> 1 & ~ROWS_HIGH_X) | (highX[w] << 15 & ROWS_HIGH_X);
+            int row = w & 3;
+            bits &= occupancy[w] << 16 | (row > 0 ? occupancy[w - 1] : lowY[w + 3]) >>> 48;
+            bits &= occupancy[w] >>> 16 | (row < 3 ? occupancy[w + 1] : highY[w - 3]) << 48;
+            bits &= w >= 4 ? occupancy[w - 4] : lowZ[w + last - 3];
+            bits &= w <= last - 4 ? occupancy[w + 4] : highZ[w - last + 3];
+            while (bits != 0) {
+                int cell = w << 6 | Long.numberOfTrailingZeros(bits);
+                hidden[numHidden++] = brick.positions[cell];
+                bits &= bits - 1;
+            }
+        }
+        return numHidden;
+    }
+
+    private static long[] occupancy(VoxelIndex.Brick brick) {
+        return brick == null ? EMPTY_OCCUPANCY : brick.occupancy;
+    }
+
+    /**
+     * Creates a copy of the model at half the resolution. Each voxel of the copy stands for a 2 x 2 x 2 block of this
+     * model and takes the color most common among the filled voxels of the block, or the lowest index on a tie. The
+     * occupancy bitsets of the index are read a row at a time, and since bricks have an even size each block lies
+     * within one brick. Downsampling the copy again gives the next level, without going back to this model. The copy
+     * shares this model's palette.
+     */
+    public VoxModel downsample() {
+        VoxelIndex index = getIndex();
+        VoxelBuffer coarse = new VoxelBuffer(Math.max(voxels.size() / 4, 16));
+        int[] colors = new int[8];
+        for (VoxelIndex.Brick brick : index.getBricks()) {
+            // The corner of the brick in the coarse model
+            int baseX = VoxelIndex.brickCoordinate(brick.key, 0) << (VoxelIndex.BRICK_BITS - 1);
+            int baseY = VoxelIndex.brickCoordinate(brick.key, 1) << (VoxelIndex.BRICK_BITS - 1);
+            int baseZ = VoxelIndex.brickCoordinate(brick.key, 2) << (VoxelIndex.BRICK_BITS - 1);
+            for (int z = 0; z < VoxelIndex.BRICK_SIZE; z += 2) {
+                for (int y = 0; y < VoxelIndex.BRICK_SIZE; y += 2) {
+                    int row00 = row(brick, y, z);
+                    int row10 = row(brick, y + 1, z);
+                    int row01 = row(brick, y, z + 1);
+                    int row11 = row(brick, y + 1, z + 1);
+                    int filled = row00 | row10 | row01 | row11;
+                    // One bit for each pair along X with any voxel in the block
+                    int blocks = (filled | filled >>> 1) & 0x5555;
+                    while (blocks != 0) {
+                        int x = Integer.numberOfTrailingZeros(blocks);
+                        int n = gather(brick, row00, x, y, z, colors, 0);
+                        n = gather(brick, row10, x, y + 1, z, colors, n);
+                        n = gather(brick, row01, x, y, z + 1, colors, n);
+                        n = gather(brick, row11, x, y + 1, z + 1, colors, n);
+                        coarse.add(baseX + (x >> 1), baseY + (y >> 1), baseZ + (z >> 1), dominant(colors, n));
+                        blocks &= blocks - 1;
+                    }
+                }
+            }
+        }
+        VoxModel model = fromUniqueVoxels((sizeX + 1) / 2, (sizeY + 1) / 2, (sizeZ + 1) / 2, palette, coarse);
+        model.maxSize = maxSize;
+        return model;
     }
 
-    private static int cos(int angle) {
-        switch (angle) {
-            case 90:
-                return 0;
-            case 180:
-                return -1;
-            case 270:
-                return 0;
+    /**
+     * @return the 16 occupancy bits along X of the brick at the given Y and Z.
+     */
+    private static int row(VoxelIndex.Brick brick, int y, int z) {
+        return (int) (brick.occupancy[z << 2 | y >>> 2] >>> ((y & 3) << 4)) & 0xFFFF;
+    }
+
+    /**
+     * Adds the colors of the voxels at X and X + 1 in the given row of the brick to the list.
+     *
+     * @return the new length of the list.
+     */
+    private int gather(VoxelIndex.Brick brick, int row, int x, int y, int z, int[] colors, int n) {
+        for (int dx = 0; dx < 2; dx++) {
+            if ((row >>> (x + dx) & 1) != 0) {
+                colors[n++] = voxels.getIndex(brick.positions[VoxelIndex.cell(x + dx, y, z)]);
+            }
         }
-        return 1;
+        return n;
     }
 
+    /**
+     * @return the most common of the first n colors, or the lowest of those that are equally common.
+     */
+    private static int dominant(int[] colors, int n) {
+        int best = 0;
+        int bestCount = 0;
+        for (int a = 0; a < n; a++) {
+            int count = 0;
+            for (int b = 0; b < n; b++) {
+                if (colors[b] == colors[a]) {
+                    count++;
+                }
+            }
+            if (count > bestCount || (count == bestCount && colors[a] < best)) {
+                best = colors[a];
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Splits the model into tiles of the given size, and writes each to its own .vox file in the given directory,
+     * along with a text file to import them into the MagicaVoxel Viewer. Empty tiles are skipped, and the tiles are
+     * written concurrently.
+     */
     public void splitIntoTiles(String dirName, int tileSize) throws IOException {
-        int nx = (int) Math.ceil(sizeX / (float) tileSize);
-        int ny = (int) Math.ceil(sizeY / (float) tileSize);
-        int nz = (int) Math.ceil(sizeZ / (float) tileSize);
-        VoxModel[][][] models = new VoxModel[nx][ny][nz];
-        ArrayList<VoxModel> results = new ArrayList<>();
-        for (int ix = 0; ix < nx; ix++) {
-            int offsetX = ix * tileSize;
-            int subSizeX = Math.min(offsetX + tileSize, sizeX);
-            for (int iy = 0; iy < ny; iy++) {
-                int offsetY = iy * tileSize;
-                int subSizeY = Math.min(offsetY + tileSize, sizeY);
-                for (int iz = 0; iz < nz; iz++) {
+        VoxelBuffer[][][] tiles = bucketIntoTiles(tileSize);
+        String prefix = new File(dirName).getName();
+        List<VoxModel> models = new ArrayList<>();
+        List<int[]> offsets = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int ix = 0; ix < tiles.length; ix++) {
+            for (int iy = 0; iy < tiles[ix].length; iy++) {
+                for (int iz = 0; iz < tiles[ix][iy].length; iz++) {
+                    if (tiles[ix][iy][iz] == null) {
+                        continue;
+                    }
+                    int offsetX = ix * tileSize;
+                    int offsetY = iy * tileSize;
                     int offsetZ = iz * tileSize;
-                    int subSizeZ = Math.min(offsetZ + tileSize, sizeZ);
-                    VoxModel model = new VoxModel(subSizeX, subSizeY, subSizeZ);
-                    model.palette = palette;
-                    models[ix][iy][iz] = model;
-                    results.add(model);
+                    models.add(createTile(tiles[ix][iy][iz], Math.min(offsetX + tileSize, sizeX), Math.min(offsetY + tileSize, sizeY), Math.min(offsetZ + tileSize, sizeZ)));
+                    tiles[ix][iy][iz] = null;
+                    offsets.add(new int[]{offsetX, offsetY, offsetZ});
+                    names.add(prefix + "_" + ix + "_" + iy + "_" + iz + ".vox");
+                }
+            }
+        }
+        writeTiles(dirName, models, offsets, names);
+    }
+
+    /**
+     * Splits the model into tiles fitted to where its voxels are, rather than cut from a fixed grid, and writes them as
+     * {@link #splitIntoTiles(String, int)} does. The model's bounding box is split in two across its longest axis, if
+     * that is longer than the tile size, preferring empty gaps between objects, and each part is split again in the
+     * same way until the bounding box of its voxels fits in a tile, like a k-d tree. Each tile is then sized to that
+     * bounding box. Tiles with fewer than the given number of voxels are merged into whichever nearby tile grows the
+     * least by taking them, as long as the result still fits, so sparse scenes aren't written as many nearly empty
+     * tiles.
+     */
+    public void splitIntoAdaptiveTiles(String dirName, int tileSize, int minTileVoxels) throws IOException {
+        long[] sorted = new long[voxels.size()];
+        for (int n = 0; n < sorted.length; n++) {
+            sorted[n] = voxels.get(n);
+        }
+        List<Region> regions = new ArrayList<>();
+        partition(sorted, new long[sorted.length], 0, sorted.length, tileSize, regions);
+        coalesce(regions, tileSize, minTileVoxels);
+        String prefix = new File(dirName).getName();
+        List<VoxModel> models = new ArrayList<>();
+        List<int[]> offsets = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Region region : regions) {
+            int[] bounds = region.bounds;
+            VoxelBuffer tileVoxels = new VoxelBuffer(region.count);
+            for (int r = 0; r < region.ranges.size(); r += 2) {
+                for (int n = region.ranges.get(r); n < region.ranges.get(r + 1); n++) {
+                    long voxel = sorted[n];
+                    tileVoxels.add(VoxelBuffer.x(voxel) - bounds[0], VoxelBuffer.y(voxel) - bounds[1], VoxelBuffer.z(voxel) - bounds[2], VoxelBuffer.i(voxel));
+                }
+            }
+            models.add(createTile(tileVoxels, bounds[3] - bounds[0] + 1, bounds[4] - bounds[1] + 1, bounds[5] - bounds[2] + 1));
+            offsets.add(new int[]{bounds[0], bounds[1], bounds[2]});
+            names.add(prefix + "_" + names.size() + ".vox");
+        }
+        writeTiles(dirName, models, offsets, names);
+    }
+
+    /**
+     * A group of voxels written as one adaptive tile: their bounding box, and the ranges of the sorted voxel array
+     * that hold them, as pairs of start and end.
+     */
+    private static class Region {
+
+        final int[] bounds;
+        final List<Integer> ranges = new ArrayList<>();
+        int count;
+        // The position of the region in the list it was partitioned into
+        int order;
+
+        Region(int[] bounds, int from, int to) {
+            this.bounds = bounds;
+            ranges.add(from);
+            ranges.add(to);
+            count = to - from;
+        }
+
+    }
+
+    /**
+     * Sorts the voxels in the given range into regions whose bounding boxes fit in a tile. If the range's bounding box
+     * is too long along any axis, it's split across the longest, and the voxels are partitioned between the two sides,
+     * which are split again in the same way.
+     */
+    private static void partition(long[] voxels, long[] scratch, int from, int to, int tileSize, List<Region> regions) {
+        if (from == to) {
+            return;
+        }
+        int[] bounds = getBounds(voxels, from, to);
+        int axis = -1;
+        for (int k = 0; k < 3; k++) {
+            int extent = bounds[k + 3] - bounds[k] + 1;
+            if (extent > tileSize && (axis < 0 || extent > bounds[axis + 3] - bounds[axis] + 1)) {
+                axis = k;
+            }
+        }
+        if (axis < 0) {
+            regions.add(new Region(bounds, from, to));
+            return;
+        }
+        int split = findSplit(voxels, from, to, axis, bounds[axis], bounds[axis + 3], tileSize);
+        // Voxels before the split go first, keeping their order, through the scratch array
+        int low = from;
+        int high = to;
+        for (int n = from; n < to; n++) {
+            if (VoxelBuffer.coordinate(voxels[n], axis) < split) {
+                scratch[low++] = voxels[n];
+            }
+        }
+        for (int n = to - 1; n >= from; n--) {
+            if (VoxelBuffer.coordinate(voxels[n], axis) >= split) {
+                scratch[--high] = voxels[n];
+            }
+        }
+        System.arraycopy(scratch, from, voxels, from, to - from);
+        partition(voxels, scratch, from, low, tileSize, regions);
+        partition(voxels, scratch, low, to, tileSize, regions);
+    }
+
+    /**
+     * @return the coordinate along the axis at which to split the voxels in the range. By default this is the tile
+     * boundary nearest the middle, counting from the first voxel, so that the range is cut into as few tiles as a grid
+     * fitted to it would. An empty gap between voxels is used instead, the widest one, if it doesn't take any more
+     * tiles than that to cover both sides, so that separate objects aren't cut in two.
+     */
+    private static int findSplit(long[] voxels, int from, int to, int axis, int min, int max, int tileSize) {
+        boolean[] filled = new boolean[max - min + 1];
+        for (int n = from; n < to; n++) {
+            filled[VoxelBuffer.coordinate(voxels[n], axis) - min] = true;
+        }
+        int numTiles = (filled.length + tileSize - 1) / tileSize;
+        int split = min + numTiles / 2 * tileSize;
+        int widest = 0;
+        int gap = 0;
+        int last = 0;
+        for (int c = 0; c < filled.length; c++) {
+            if (!filled[c]) {
+                gap++;
+                continue;
+            }
+            if (gap > widest && (last + tileSize) / tileSize + (filled.length - c + tileSize - 1) / tileSize <= numTiles) {
+                widest = gap;
+                split = min + c;
+            }
+            gap = 0;
+            last = c;
+        }
+        return split;
+    }
+
+    /**
+     * Merges each region with fewer than the given number of voxels into the region whose bounding box grows the least
+     * by taking it, as long as the result fits in a tile. Any region it can merge with lies within a tile's length of
+     * it, so the regions are bucketed by the tile-sized cells of a grid that their bounding boxes overlap, and only
+     * those in the neighboring cells are compared, rather than every pair.
+     */
+    private static void coalesce(List<Region> regions, int tileSize, int minTileVoxels) {
+        HashMap<Long, List<Region>> cells = new HashMap<>();
+        ArrayDeque<Region> small = new ArrayDeque<>();
+        for (int n = 0; n < regions.size(); n++) {
+            Region region = regions.get(n);
+            region.order = n;
+            addToCells(cells, region, tileSize);
+            if (region.count < minTileVoxels) {
+                small.add(region);
+            }
+        }
+        // Regions that have been merged into others, and the candidates already compared for the current region
+        Set<Region> merged = Collections.newSetFromMap(new IdentityHashMap<Region, Boolean>());
+        Set<Region> seen = Collections.newSetFromMap(new IdentityHashMap<Region, Boolean>());
+        while (!small.isEmpty()) {
+            Region region = small.poll();
+            if (merged.contains(region)) {
+                continue;
+            }
+            Region best = null;
+            long bestGrowth = Long.MAX_VALUE;
+            seen.clear();
+            int[] min = new int[3];
+            int[] max = new int[3];
+            for (int k = 0; k < 3; k++) {
+                min[k] = Math.max(region.bounds[k + 3] - tileSize + 1, 0) / tileSize;
+                max[k] = (region.bounds[k] + tileSize - 1) / tileSize;
+            }
+            for (int cz = min[2]; cz <= max[2]; cz++) {
+                for (int cy = min[1]; cy <= max[1]; cy++) {
+                    for (int cx = min[0]; cx <= max[0]; cx++) {
+                        List<Region> cell = cells.get(cellKey(cx, cy, cz));
+                        if (cell == null) {
+                            continue;
+                        }
+                        for (Region other : cell) {
+                            if (other == region || merged.contains(other) || !seen.add(other)) {
+                                continue;
+                            }
+                            long volume = 1;
+                            boolean fits = true;
+                            for (int k = 0; k < 3 && fits; k++) {
+                                int extent = Math.max(region.bounds[k + 3], other.bounds[k + 3]) - Math.min(region.bounds[k], other.bounds[k]) + 1;
+                                fits = extent <= tileSize;
+                                volume *= extent;
+                            }
+                            // Ties go to the region listed first, so the result doesn't depend on the bucketing
+                            long growth = volume - getVolume(other.bounds);
+                            if (fits && (growth < bestGrowth || growth == bestGrowth && other.order < best.order)) {
+                                best = other;
+                                bestGrowth = growth;
+                            }
+                        }
+                    }
+                }
+            }
+            if (best != null) {
+                for (int k = 0; k < 3; k++) {
+                    best.bounds[k] = Math.min(best.bounds[k], region.bounds[k]);
+                    best.bounds[k + 3] = Math.max(best.bounds[k + 3], region.bounds[k + 3]);
+                }
+                best.ranges.addAll(region.ranges);
+                best.count += region.count;
+                merged.add(region);
+                // The grown region may now reach more cells, and may still be small enough to merge again
+                addToCells(cells, best, tileSize);
+                if (best.count < minTileVoxels) {
+                    small.add(best);
                 }
             }
         }
-        for (Voxel voxel : voxels) {
-            int ix = voxel.x / tileSize;
-            int iy = voxel.y / tileSize;
-            int iz = voxel.z / tileSize;
-            int x = voxel.x - ix * tileSize;
-            int y = voxel.y - iy * tileSize;
-            int z = voxel.z - iz * tileSize;
-            models[ix][iy][iz].addVoxel(x, y, z, voxel.i);
+        Iterator<Region> iterator = regions.iterator();
+        while (iterator.hasNext()) {
+            if (merged.contains(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Adds the region to the list of each grid cell its bounding box overlaps that doesn't already hold it.
+     */
+    private static void addToCells(HashMap<Long, List<Region>> cells, Region region, int tileSize) {
+        int[] bounds = region.bounds;
+        for (int cz = bounds[2] / tileSize; cz <= bounds[5] / tileSize; cz++) {
+            for (int cy = bounds[1] / tileSize; cy <= bounds[4] / tileSize; cy++) {
+                for (int cx = bounds[0] / tileSize; cx <= bounds[3] / tileSize; cx++) {
+                    long key = cellKey(cx, cy, cz);
+                    List<Region> cell = cells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<>();
+                        cells.put(key, cell);
+                    }
+                    if (!cell.contains(region)) {
+                        cell.add(region);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long cellKey(int cx, int cy, int cz) {
+        return (long) cz << 32 | (long) cy << 16 | cx;
+    }
+
+    private static long getVolume(int[] bounds) {
+        return (long) (bounds[3] - bounds[0] + 1) * (bounds[4] - bounds[1] + 1) * (bounds[5] - bounds[2] + 1);
+    }
+
+    private static int[] getBounds(long[] voxels, int from, int to) {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1, -1};
+        for (int n = from; n < to; n++) {
+            for (int k = 0; k < 3; k++) {
+                int c = VoxelBuffer.coordinate(voxels[n], k);
+                bounds[k] = Math.min(bounds[k], c);
+                bounds[k + 3] = Math.max(bounds[k + 3], c);
+            }
         }
+        return bounds;
+    }
+
+    /**
+     * Writes each tile to its own .vox file in the given directory, concurrently, along with a text file listing
+     * them, in order, at their offsets for the MagicaVoxel Viewer.
+     */
+    private static void writeTiles(String dirName, List<VoxModel> models, List<int[]> offsets, List<String> names) throws IOException {
         File dir = new File(dirName);
         dir.mkdirs();
+        int numWriters = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_TILE_WRITERS));
+        ExecutorService executor = Executors.newFixedThreadPool(numWriters);
+        ArrayList<Future<?>> writes = new ArrayList<>();
         PrintWriter textOut = new PrintWriter(dirName + ".txt");
-        textOut.println("// Generated by Voxcom (https://github.com/larvalabs/voxcom)");
-        textOut.println("mv_import 2048");
-        for (int ix = 0; ix < nx; ix++) {
-            for (int iy = 0; iy < ny; iy++) {
-                for (int iz = 0; iz < nz; iz++) {
-                    VoxModel model = models[ix][iy][iz];
-                    String name = dirName + "_" + ix + "_" + iy + "_" + iz + ".vox";
-                    File voxFile = new File(dir, name);
-                    FileOutputStream outputStream = new FileOutputStream(voxFile);
-                    VoxFormat.write(model, outputStream);
-                    outputStream.close();
-                    int offsetX = ix * tileSize;
-                    int offsetY = iy * tileSize;
-                    int offsetZ = iz * tileSize;
-                    textOut.println(offsetX + "\t" + offsetY + "\t" + offsetZ + "\t" + voxFile.getAbsolutePath());
+        try {
+            textOut.println("// Generated by Voxcom (https://github.com/larvalabs/voxcom)");
+            textOut.println("mv_import 2048");
+            for (int n = 0; n < models.size(); n++) {
+                final VoxModel model = models.get(n);
+                final File voxFile = new File(dir, names.get(n));
+                writes.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        FileOutputStream outputStream = new FileOutputStream(voxFile);
+                        try {
+                            VoxFormat.write(model, outputStream);
+                        } finally {
+                            outputStream.close();
+                        }
+                        return null;
+                    }
+                }));
+                int[] offset = offsets.get(n);
+                textOut.println(offset[0] + "\t" + offset[1] + "\t" + offset[2] + "\t" + voxFile.getAbsolutePath());
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while writing tiles.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to write tile.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            textOut.close();
+        }
+    }
+
+    /**
+     * Splits the model into tiles no larger than the given size, returned as a scene positioned around the origin, so
+     * that a large model can be written as a single multi-model file. Empty tiles are left out.
+     */
+    public VoxScene splitIntoScene(int tileSize) {
+        VoxelBuffer[][][] tiles = bucketIntoTiles(tileSize);
+        VoxScene scene = new VoxScene(palette);
+        for (int ix = 0; ix < tiles.length; ix++) {
+            for (int iy = 0; iy < tiles[ix].length; iy++) {
+                for (int iz = 0; iz < tiles[ix][iy].length; iz++) {
+                    if (tiles[ix][iy][iz] != null) {
+                        int offsetX = ix * tileSize;
+                        int offsetY = iy * tileSize;
+                        int offsetZ = iz * tileSize;
+                        VoxModel model = createTile(tiles[ix][iy][iz], Math.min(tileSize, sizeX - offsetX), Math.min(tileSize, sizeY - offsetY), Math.min(tileSize, sizeZ - offsetZ));
+                        // Center the scene horizontally, as MagicaVoxel's world is centered on the origin
+                        scene.addModel(model, offsetX - sizeX / 2, offsetY - sizeY / 2, offsetZ);
+                    }
                 }
             }
         }
-        textOut.close();
+        return scene;
+    }
+
+    /**
+     * Sorts the voxels into tiles of the given size, with coordinates relative to the tile. The buffer for a tile is
+     * only created once a voxel lands in it, so empty tiles are null.
+     */
+    private VoxelBuffer[][][] bucketIntoTiles(int tileSize) {
+        int nx = (int) Math.ceil(sizeX / (float) tileSize);
+        int ny = (int) Math.ceil(sizeY / (float) tileSize);
+        int nz = (int) Math.ceil(sizeZ / (float) tileSize);
+        VoxelBuffer[][][] tiles = new VoxelBuffer[nx][ny][nz];
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            int vx = VoxelBuffer.x(voxel);
+            int vy = VoxelBuffer.y(voxel);
+            int vz = VoxelBuffer.z(voxel);
+            int ix = vx / tileSize;
+            int iy = vy / tileSize;
+            int iz = vz / tileSize;
+            VoxelBuffer tile = tiles[ix][iy][iz];
+            if (tile == null) {
+                tile = new VoxelBuffer();
+                tiles[ix][iy][iz] = tile;
+            }
+            tile.add(vx - ix * tileSize, vy - iy * tileSize, vz - iz * tileSize, VoxelBuffer.i(voxel));
+        }
+        return tiles;
+    }
+
+    /**
+     * Creates a model sharing this model's palette from voxels that are already known to be unique.
+     */
+    private VoxModel createTile(VoxelBuffer tileVoxels, int tileSizeX, int tileSizeY, int tileSizeZ) {
+        return fromUniqueVoxels(tileSizeX, tileSizeY, tileSizeZ, palette, tileVoxels);
+    }
+
+    /**
+     * Creates a model that takes the given buffer as its voxels, which must already be unique, rather than adding
+     * them one at a time.
+     */
+    static VoxModel fromUniqueVoxels(int sizeX, int sizeY, int sizeZ, Palette palette, VoxelBuffer voxels) {
+        VoxModel model = new VoxModel(sizeX, sizeY, sizeZ);
+        model.palette = palette;
+        model.voxels = voxels;
+        return model;
     }
 
 }
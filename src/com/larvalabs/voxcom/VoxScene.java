@@ -0,0 +1,90 @@
+package com.larvalabs.voxcom;
+
+import java.util.ArrayList;
+
+/**
+ * Represents a .vox file containing multiple models, each placed in the world at an offset. All models in a scene
+ * share a single palette. The same model can be placed more than once, in which case it is only stored once in the
+ * file.
+ *
+ * @author John Watkinson
+ */
+public class VoxScene {
+
+    private Palette palette;
+
+    private ArrayList<VoxModel> models = new ArrayList<>();
+    private ArrayList<int[]> offsets = new ArrayList<>();
+
+    public VoxScene(Palette palette) {
+        this.palette = palette;
+    }
+
+    public Palette getPalette() {
+        return palette;
+    }
+
+    /**
+     * Places a model in the scene with its origin (0, 0, 0) at the given world coordinate.
+     */
+    public void addModel(VoxModel model, int x, int y, int z) {
+        models.add(model);
+        offsets.add(new int[]{x, y, z});
+    }
+
+    public int getNumModels() {
+        return models.size();
+    }
+
+    public VoxModel getModel(int n) {
+        return models.get(n);
+    }
+
+    public int getOffsetX(int n) {
+        return offsets.get(n)[0];
+    }
+
+    public int getOffsetY(int n) {
+        return offsets.get(n)[1];
+    }
+
+    public int getOffsetZ(int n) {
+        return offsets.get(n)[2];
+    }
+
+    /**
+     * Combines all of the models in the scene into a single model, shifted so that the lowest corner of the scene is
+     * at the origin. A scene with only one model just returns that model.
+     */
+    public VoxModel toModel() {
+        if (models.size() == 1) {
+            return models.get(0);
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int n = 0; n < models.size(); n++) {
+            VoxModel model = models.get(n);
+            minX = Math.min(minX, getOffsetX(n));
+            minY = Math.min(minY, getOffsetY(n));
+            minZ = Math.min(minZ, getOffsetZ(n));
+            maxX = Math.max(maxX, getOffsetX(n) + model.getSizeX());
+            maxY = Math.max(maxY, getOffsetY(n) + model.getSizeY());
+            maxZ = Math.max(maxZ, getOffsetZ(n) + model.getSizeZ());
+        }
+        VoxModel result = new VoxModel(maxX - minX, maxY - minY, maxZ - minZ);
+        result.setMaxSize(Math.max(Math.max(result.getSizeX(), result.getSizeY()), result.getSizeZ()));
+        result.setPalette(palette);
+        for (int n = 0; n < models.size(); n++) {
+            VoxelBuffer voxels = models.get(n).getVoxels();
+            int dx = getOffsetX(n) - minX;
+            int dy = getOffsetY(n) - minY;
+            int dz = getOffsetZ(n) - minZ;
+            for (int k = 0; k < voxels.size(); k++) {
+                long voxel = voxels.get(k);
+                result.addVoxel(VoxelBuffer.x(voxel) + dx, VoxelBuffer.y(voxel) + dy, VoxelBuffer.z(voxel) + dz, VoxelBuffer.i(voxel));
+            }
+        }
+        return result;
+    }
+
+}
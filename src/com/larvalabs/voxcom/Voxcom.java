@@ -1,14 +1,18 @@
 package com.larvalabs.voxcom;
 
-import org.ho.yaml.Yaml;
-
-import java.io.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Main entry point for Voxcom. Parses the provided YAML file, composites the scene and writes out the resulting .vox
- * file.
+ * file. Given several YAML files, it composites them all at once, sharing a thread pool and the models they read.
  *
  * @author John Watkinson
  */
@@ -17,108 +21,85 @@ public class Voxcom {
     public static final int MAX_SIZE_VOX = 126;
     public static final int MAX_SIZE_VIEWER = 2048;
 
-    public static boolean ignoreMaterials = false;
-    public static int maxSize = 126;
-
     public static void main(String[] args) throws Exception{
-        System.out.println("Welcome to Voxcom \uD83D\uDC7E");
-        if (args.length == 0) {
-            showUsage();
-        } else {
-            parseYaml(args[0]);
-        }
-    }
-
-    private static void showUsage() {
-        System.out.println("Usage: java -jar voxcom.jar <scene.yaml>");
-    }
-
-    private static void parseYaml(String file) throws Exception {
-        String outFile;
-        HashMap yaml = (HashMap) Yaml.load(new File(file));
-        boolean forViewer = getBoolean(yaml, "viewer", false);
-        if (forViewer) {
-            maxSize = MAX_SIZE_VIEWER;
-            outFile = "scene";
-        } else {
-            maxSize = MAX_SIZE_VOX;
-            outFile = "scene.vox";
-        }
-        if (yaml.containsKey("output")) {
-            outFile = yaml.get("output").toString();
+        List<String> files = new ArrayList<>();
+        String reportFile = null;
+        boolean daemon = false;
+        long cacheVoxels = Long.MAX_VALUE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--report") && i + 1 < args.length) {
+                reportFile = args[++i];
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else if (args[i].equals("--cache-voxels") && i + 1 < args.length) {
+                cacheVoxels = Long.parseLong(args[++i]);
+            } else {
+                files.add(args[i]);
+            }
         }
-        // If set, ignore materials when merging palettes, just use color.
-        ignoreMaterials = getBoolean(yaml, "ignoreMaterials", false);
-        ArrayList<HashMap> models = (ArrayList) yaml.get("models");
-        VoxModel parent = new VoxModel(1, 1, 1);
-        for (HashMap model : models) {
-            String filename = model.get("name").toString();
-            int scale = getInt(model, "scale", 1);
-            float posX = getFloat(model, "posX", 0);
-            float posY = getFloat(model, "posY", 0);
-            float posZ = getFloat(model, "posZ", 0);
-            boolean centerX = getBoolean(model, "centerX", false);
-            boolean centerY = getBoolean(model, "centerY", false);
-            boolean centerZ = getBoolean(model, "centerZ", false);
-            boolean flipX = getBoolean(model, "flipX", false);
-            boolean flipY = getBoolean(model, "flipY", false);
-            boolean flipZ = getBoolean(model, "flipZ", false);
-            int rotateX = getInt(model, "rotateX", 0);
-            int rotateY = getInt(model, "rotateY", 0);
-            int rotateZ = getInt(model, "rotateZ", 0);
-            System.out.println(" - Adding '" + filename + "'...");
-            FileInputStream modelIn = new FileInputStream(filename);
-            VoxModel vm = VoxFormat.read(modelIn);
-            vm.scale(scale);
-            modelIn.close();
-            parent.add(vm, posX, posY, posZ, centerX, centerY, centerZ, flipX, flipY, flipZ, rotateX, rotateY, rotateZ);
+        // In daemon mode standard output is kept for the results
+        (daemon ? System.err : System.out).println("Welcome to Voxcom \uD83D\uDC7E");
+        if (files.isEmpty() && !daemon) {
+            showUsage();
+            return;
         }
-        parent.clipToVoxels();
-        if (forViewer) {
-            System.out.println(" - Writing out vox files to '" + outFile + "'...");
-            parent.splitIntoTiles(outFile, MAX_SIZE_VOX);
-            System.out.println(" - Drag the file '" + outFile + ".txt' into the MagicaVoxel Viewer to render.");
-        } else {
-            System.out.println(" - Writing vox result to '" + outFile + "'...");
-            FileOutputStream out = new FileOutputStream(outFile);
-            VoxFormat.write(parent, out);
-            out.close();
+        ModelCache cache = new ModelCache(cacheVoxels);
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            if (daemon) {
+                new Daemon(cache, pool, System.out).run(new BufferedReader(new InputStreamReader(System.in)));
+            } else if (files.size() == 1) {
+                CompositeJob job = new CompositeJob(files.get(0));
+                job.setReportFile(reportFile);
+                job.run(cache, pool);
+                System.out.println("Done.");
+            } else if (!runBatch(files, reportFile, cache, pool)) {
+                System.exit(1);
+            }
+        } finally {
+            pool.shutdown();
         }
-        System.out.println("Done.");
     }
 
-    private static int getInt(HashMap map, String key, int defaultValue) {
-        Object obj = map.get(key);
-        if (obj == null) {
-            return defaultValue;
-        } else {
-            return Integer.parseInt(obj.toString());
-        }
+    private static void showUsage() {
+        System.out.println("Usage: java -jar voxcom.jar [--report <report.json>] <scene.yaml> [<scene.yaml> ...]");
+        System.out.println("       java -jar voxcom.jar --daemon [--cache-voxels <max voxels>]");
     }
 
-    private static float getFloat(HashMap map, String key, float defaultValue) {
-        Object obj = map.get(key);
-        if (obj == null) {
-            return defaultValue;
-        } else {
-            return Float.parseFloat(obj.toString());
+    /**
+     * Composites each of the scenes concurrently on the pool. A scene that fails doesn't stop the others.
+     *
+     * @return true if all of the scenes succeeded.
+     */
+    private static boolean runBatch(List<String> files, String reportFile, final ModelCache cache, final ForkJoinPool pool) throws InterruptedException {
+        List<Future<RunReport>> results = new ArrayList<>();
+        for (String file : files) {
+            final CompositeJob job = new CompositeJob(file);
+            if (reportFile != null) {
+                // Each scene gets its own report, named after the scene
+                File report = new File(reportFile).getAbsoluteFile();
+                String name = new File(file).getName().replaceFirst("\\.ya?ml$", "");
+                job.setReportFile(new File(report.getParentFile(), name + "-" + report.getName()).getPath());
+            }
+            results.add(pool.submit(new Callable<RunReport>() {
+                @Override
+                public RunReport call() throws Exception {
+                    return job.run(cache, pool);
+                }
+            }));
         }
-    }
-
-    private static boolean getBoolean(HashMap map, String key, boolean defaultValue) {
-        Object obj = map.get(key);
-        if (obj == null) {
-            return defaultValue;
-        } else {
-            String s = obj.toString().toLowerCase();
-            if ("yes".equals(s)) {
-                return true;
-            } else if ("no".equals(s)) {
-                return false;
-            } else {
-                return Boolean.parseBoolean(obj.toString());
+        boolean succeeded = true;
+        for (int n = 0; n < files.size(); n++) {
+            try {
+                results.get(n).get();
+            } catch (ExecutionException e) {
+                System.out.println("Failed to composite '" + files.get(n) + "': " + e.getCause());
+                succeeded = false;
             }
         }
+        System.out.println("Composited " + files.size() + " scenes.");
+        System.out.println("Done.");
+        return succeeded;
     }
 
 }
@@ -1,19 +0,0 @@
-package com.larvalabs.voxcom;
-
-/**
- * Represents an individual voxel.
- *
- * @author John Watkinson
- */
-public class Voxel {
-
-    public int x, y, z, i;
-
-    public Voxel(int x, int y, int z, int i) {
-        this.x = x;
-        this.y = y;
-        this.z = z;
-        this.i = i;
-    }
-
-}
@@ -0,0 +1,129 @@
+package com.larvalabs.voxcom;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of voxels stored as packed primitive longs, so that large scenes don't need an object per voxel.
+ * Each voxel is packed as 16 bits each of x, y and z followed by 8 bits of palette index.
+ *
+ * @author John Watkinson
+ */
+public class VoxelBuffer {
+
+    private static final int SHIFT_X = 40;
+    private static final int SHIFT_Y = 24;
+    private static final int SHIFT_Z = 8;
+    private static final int COORD_MASK = 0xFFFF;
+    private static final int INDEX_MASK = 0xFF;
+
+    private long[] data;
+    private int size;
+
+    public VoxelBuffer() {
+        this(16);
+    }
+
+    public VoxelBuffer(int capacity) {
+        data = new long[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Wraps an array of packed voxels without copying it.
+     */
+    VoxelBuffer(long[] data, int size) {
+        this.data = data.length == 0 ? new long[1] : data;
+        this.size = size;
+    }
+
+    public static long pack(int x, int y, int z, int i) {
+        return (long) (x & COORD_MASK) << SHIFT_X | (long) (y & COORD_MASK) << SHIFT_Y | (long) (z & COORD_MASK) << SHIFT_Z | (i & INDEX_MASK);
+    }
+
+    public static int x(long voxel) {
+        return (int) (voxel >>> SHIFT_X) & COORD_MASK;
+    }
+
+    public static int y(long voxel) {
+        return (int) (voxel >>> SHIFT_Y) & COORD_MASK;
+    }
+
+    public static int z(long voxel) {
+        return (int) (voxel >>> SHIFT_Z) & COORD_MASK;
+    }
+
+    public static int i(long voxel) {
+        return (int) voxel & INDEX_MASK;
+    }
+
+    /**
+     * @return the coordinate of the voxel along the given axis, 0 for X, 1 for Y and 2 for Z.
+     */
+    public static int coordinate(long voxel, int axis) {
+        return (int) (voxel >>> shift(axis)) & COORD_MASK;
+    }
+
+    private static int shift(int axis) {
+        return SHIFT_X - axis * (SHIFT_X - SHIFT_Y);
+    }
+
+    public static long withIndex(long voxel, int i) {
+        return (voxel & ~INDEX_MASK) | (i & INDEX_MASK);
+    }
+
+    public void add(int x, int y, int z, int i) {
+        add(pack(x, y, z, i));
+    }
+
+    public void add(long voxel) {
+        if (size == data.length) {
+            ensureCapacity(size + 1);
+        }
+        data[size++] = voxel;
+    }
+
+    public long get(int n) {
+        return data[n];
+    }
+
+    public void set(int n, long voxel) {
+        data[n] = voxel;
+    }
+
+    public int getIndex(int n) {
+        return i(data[n]);
+    }
+
+    public void setIndex(int n, int i) {
+        data[n] = withIndex(data[n], i);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the buffer with every voxel moved by the given amounts, which must leave every coordinate
+     * within 0 to 65535. The move is a single addition to each packed voxel.
+     */
+    public VoxelBuffer translate(int dx, int dy, int dz) {
+        long delta = ((long) dx << SHIFT_X) + ((long) dy << SHIFT_Y) + ((long) dz << SHIFT_Z);
+        VoxelBuffer copy = new VoxelBuffer(size);
+        for (int n = 0; n < size; n++) {
+            copy.data[n] = data[n] + delta;
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            int newCapacity = Math.max(capacity, data.length + (data.length >> 1));
+            data = Arrays.copyOf(data, newCapacity);
+        }
+    }
+
+}
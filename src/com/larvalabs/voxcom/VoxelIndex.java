@@ -0,0 +1,217 @@
+package com.larvalabs.voxcom;
+
+import java.util.Arrays;
+
+/**
+ * A sparse spatial index over the voxels of a model. Space is divided into 16 x 16 x 16 bricks, which are kept in an
+ * open-addressed hash table keyed by brick coordinate. Each brick holds an occupancy bitset and the position within
+ * the model's {@link VoxelBuffer} of each voxel it contains, so lookups and updates are O(1).
+ *
+ * @author John Watkinson
+ */
+class VoxelIndex {
+
+    static final int BRICK_BITS = 4;
+    static final int BRICK_SIZE = 1 << BRICK_BITS;
+    static final int BRICK_MASK = BRICK_SIZE - 1;
+    static final int BRICK_CELLS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    // Brick coordinates are packed into 10 bits each, which covers coordinates up to 16384.
+    private static final int KEY_BITS = 10;
+    private static final int KEY_MASK = (1 << KEY_BITS) - 1;
+    private static final int NO_KEY = -1;
+
+    static final class Brick {
+
+        final int key;
+        final long[] occupancy = new long[BRICK_CELLS / 64];
+        final int[] positions = new int[BRICK_CELLS];
+
+        Brick(int key) {
+            this.key = key;
+        }
+
+        boolean isSet(int cell) {
+            return (occupancy[cell >>> 6] & (1L << cell)) != 0;
+        }
+
+    }
+
+    private int[] keys;
+    private Brick[] bricks;
+    private int numBricks;
+
+    // Voxels tend to arrive in runs within the same brick, so remember the last one looked up, unless the index is
+    // shared.
+    private Brick lastBrick;
+    private boolean shared;
+
+    VoxelIndex() {
+        keys = new int[64];
+        bricks = new Brick[64];
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    static int brickKey(int x, int y, int z) {
+        return (x >>> BRICK_BITS) | (y >>> BRICK_BITS) << KEY_BITS | (z >>> BRICK_BITS) << (2 * KEY_BITS);
+    }
+
+    static int cell(int x, int y, int z) {
+        return (z & BRICK_MASK) << (2 * BRICK_BITS) | (y & BRICK_MASK) << BRICK_BITS | (x & BRICK_MASK);
+    }
+
+    boolean isSet(int x, int y, int z) {
+        Brick brick = findBrick(brickKey(x, y, z));
+        return brick != null && brick.isSet(cell(x, y, z));
+    }
+
+    /**
+     * @return the buffer position of the voxel at the given coordinate, or -1 if it is empty.
+     */
+    int get(int x, int y, int z) {
+        Brick brick = findBrick(brickKey(x, y, z));
+        if (brick != null) {
+            int cell = cell(x, y, z);
+            if (brick.isSet(cell)) {
+                return brick.positions[cell];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records the buffer position of the voxel at the given coordinate, unless that coordinate is already filled.
+     *
+     * @return the existing buffer position, or -1 if the position was recorded.
+     */
+    int putIfAbsent(int x, int y, int z, int position) {
+        Brick brick = findOrCreateBrick(brickKey(x, y, z));
+        int cell = cell(x, y, z);
+        if (brick.isSet(cell)) {
+            return brick.positions[cell];
+        }
+        brick.occupancy[cell >>> 6] |= 1L << cell;
+        brick.positions[cell] = position;
+        return -1;
+    }
+
+    /**
+     * Records the buffer position of the voxel at the given coordinate, replacing any existing one.
+     */
+    void put(int x, int y, int z, int position) {
+        if (putIfAbsent(x, y, z, position) >= 0) {
+            lastBrick.positions[cell(x, y, z)] = position;
+        }
+    }
+
+    /**
+     * Marks the index as finished and shared, so that several threads can look it up at once. Lookups then no longer
+     * use the cache of the last brick, which they would otherwise race on. The index mustn't be modified afterwards.
+     */
+    void share() {
+        shared = true;
+    }
+
+    Brick findBrick(int key) {
+        if (shared) {
+            return lookup(key);
+        }
+        Brick brick = lastBrick;
+        if (brick != null && brick.key == key) {
+            return brick;
+        }
+        brick = lookup(key);
+        if (brick != null) {
+            lastBrick = brick;
+        }
+        return brick;
+    }
+
+    /**
+     * @return the brick next to the given one along an axis (0 for X, 1 for Y, 2 for Z) in the given direction, or
+     * null if there isn't one. This doesn't touch the lookup cache, so several threads can call it at once as long as
+     * nothing is modifying the index.
+     */
+    Brick neighbor(Brick brick, int axis, int direction) {
+        int shift = axis * KEY_BITS;
+        int b = (brick.key >>> shift & KEY_MASK) + direction;
+        if (b < 0 || b > KEY_MASK) {
+            return null;
+        }
+        return lookup(brick.key & ~(KEY_MASK << shift) | b << shift);
+    }
+
+    /**
+     * @return all of the bricks in the index, in no particular order.
+     */
+    Brick[] getBricks() {
+        Brick[] result = new Brick[numBricks];
+        int n = 0;
+        for (Brick brick : bricks) {
+            if (brick != null) {
+                result[n++] = brick;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the brick coordinate along the given axis of the brick with the given key.
+     */
+    static int brickCoordinate(int key, int axis) {
+        return key >>> (axis * KEY_BITS) & KEY_MASK;
+    }
+
+    private Brick lookup(int key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != NO_KEY; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return bricks[slot];
+            }
+        }
+        return null;
+    }
+
+    private Brick findOrCreateBrick(int key) {
+        Brick brick = findBrick(key);
+        if (brick == null) {
+            if (2 * (numBricks + 1) > keys.length) {
+                grow();
+            }
+            brick = new Brick(key);
+            insert(key, brick);
+            numBricks++;
+            lastBrick = brick;
+        }
+        return brick;
+    }
+
+    private void insert(int key, Brick brick) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != NO_KEY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        bricks[slot] = brick;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Brick[] oldBricks = bricks;
+        keys = new int[oldKeys.length * 2];
+        bricks = new Brick[oldBricks.length * 2];
+        Arrays.fill(keys, NO_KEY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NO_KEY) {
+                insert(oldKeys[i], oldBricks[i]);
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.larvalabs.voxcom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that archives read back the models written to them, and that damaged archives are rejected with an
+ * IOException rather than any other exception.
+ *
+ * @author John Watkinson
+ */
+public class AssetArchiveTest {
+
+    private File dir;
+    private File archive;
+    private VoxModel first;
+    private VoxModel second;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("voxcom", "");
+        dir.delete();
+        dir.mkdirs();
+        SceneGenerator generator = new SceneGenerator(1);
+        first = generator.generateModel(16, 200, 4);
+        second = generator.generateModel(24, 300, 6);
+        archive = new File(dir, "models.vxa");
+        AssetArchive.write(archive, Arrays.asList("first.vox", "trees/second.vox"), Arrays.asList(first, second));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void modelsReadBack() throws IOException {
+        AssetArchive assets = new AssetArchive(archive);
+        assertEquals(2, assets.getNames().size());
+        assertNull(assets.read("missing.vox"));
+        assertSameVoxels(first, assets.read("first.vox"));
+        assertSameVoxels(second, assets.read("trees/second.vox"));
+    }
+
+    @Test
+    public void truncatedArchivesAreRejected() throws IOException {
+        byte[] data = readFile(archive);
+        File truncated = new File(dir, "truncated.vxa");
+        for (int length = 0; length < data.length; length++) {
+            writeFile(truncated, Arrays.copyOf(data, length));
+            try {
+                AssetArchive assets = new AssetArchive(truncated);
+                for (String name : assets.getNames()) {
+                    assets.read(name);
+                }
+                fail("Read an archive truncated to " + length + " of " + data.length + " bytes.");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void corruptIndexIsRejected() throws IOException {
+        byte[] data = readFile(archive);
+        File corrupt = new File(dir, "corrupt.vxa");
+        // The number of models, the size of the index and the length of the first name
+        for (int offset : new int[]{8, 12, 16}) {
+            byte[] copy = data.clone();
+            copy[offset + 1] = (byte) 0xFF;
+            if (offset != 16) {
+                copy[offset + 3] = (byte) 0xFF;
+            }
+            writeFile(corrupt, copy);
+            try {
+                new AssetArchive(corrupt);
+                fail("Read an archive with a corrupt value at " + offset + ".");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static void assertSameVoxels(VoxModel expected, VoxModel actual) {
+        assertEquals(expected.getSizeX(), actual.getSizeX());
+        assertEquals(expected.getSizeY(), actual.getSizeY());
+        assertEquals(expected.getSizeZ(), actual.getSizeZ());
+        assertEquals(expected.getVoxels().size(), actual.getVoxels().size());
+        for (int n = 0; n < expected.getVoxels().size(); n++) {
+            long voxel = expected.getVoxels().get(n);
+            long read = actual.getVoxels().get(n);
+            assertEquals(VoxelBuffer.withIndex(voxel, 0), VoxelBuffer.withIndex(read, 0));
+            assertEquals(expected.getPalette().getColor(VoxelBuffer.i(voxel)), actual.getPalette().getColor(VoxelBuffer.i(read)));
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+}
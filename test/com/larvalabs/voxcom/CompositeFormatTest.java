@@ -0,0 +1,96 @@
+package com.larvalabs.voxcom;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that .vxc files read back the model written to them, and that corrupt runs are rejected.
+ *
+ * @author John Watkinson
+ */
+public class CompositeFormatTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        // Coordinates beyond the .vox limit, runs crossing rows of a brick, and a material
+        VoxModel model = new VoxModel(1, 1, 1);
+        model.setMaxSize(CompositeFormat.MAX_COORDINATE);
+        model.setColor(3, 0xFF112233);
+        model.setColor(7, 0xFF445566);
+        Material glass = model.getMaterial(7);
+        glass.type = 2;
+        glass.weight = 0.5f;
+        glass.properties = 1;
+        glass.values = new float[]{0.25f, 0.75f};
+        for (int x = 0; x < 40; x++) {
+            model.addVoxel(x, 5, 3, 3);
+        }
+        model.addVoxel(300, 1000, 2000, 7);
+        model.addVoxel(2047, 2047, 2047, 3);
+        model.addVoxel(17, 5, 3, 7);
+        model.clipToVoxels();
+
+        VoxModel read = CompositeFormat.read(ByteBuffer.wrap(write(model)));
+        assertEquals(model.getSizeX(), read.getSizeX());
+        assertEquals(model.getSizeY(), read.getSizeY());
+        assertEquals(model.getSizeZ(), read.getSizeZ());
+        assertEquals(model.getMaxSize(), read.getMaxSize());
+        assertEquals(model.getVoxels().size(), read.getVoxels().size());
+        for (int n = 0; n < model.getVoxels().size(); n++) {
+            long voxel = model.getVoxels().get(n);
+            assertEquals(VoxelBuffer.i(voxel), read.get(VoxelBuffer.x(voxel), VoxelBuffer.y(voxel), VoxelBuffer.z(voxel)));
+        }
+        for (int i = 0; i < 256; i++) {
+            assertEquals(model.getMaterial(i), read.getMaterial(i));
+        }
+    }
+
+    @Test
+    public void emptyModelRoundTrips() throws IOException {
+        VoxModel read = CompositeFormat.read(ByteBuffer.wrap(write(new VoxModel(4, 5, 6))));
+        assertEquals(0, read.getVoxels().size());
+        assertEquals(6, read.getSizeZ());
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeCellIsRejected() throws IOException {
+        VoxModel model = new VoxModel(1, 1, 1);
+        model.addVoxel(0, 0, 0, 1);
+        byte[] data = write(model);
+        // The first run's cell, which is 0, is written as a single byte after the header, palette and brick header
+        int offset = 32 + AssetArchive.getPaletteSize(model.getPalette()) + 8;
+        assertEquals(0, data[offset]);
+        // The same run skipping 0x80000000 cells
+        byte[] corrupt = new byte[data.length + 4];
+        System.arraycopy(data, 0, corrupt, 0, offset);
+        System.arraycopy(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08}, 0, corrupt, offset, 5);
+        System.arraycopy(data, offset + 1, corrupt, offset + 5, data.length - offset - 1);
+        CompositeFormat.read(ByteBuffer.wrap(corrupt));
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws IOException {
+        VoxModel model = new SceneGenerator(1).generateModel(32, 500, 8);
+        byte[] data = write(model);
+        for (int length = 0; length < data.length; length++) {
+            try {
+                CompositeFormat.read(ByteBuffer.wrap(data, 0, length).slice());
+                fail("Read a .vxc file truncated to " + length + " of " + data.length + " bytes.");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static byte[] write(VoxModel model) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompositeFormat.write(model, out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.larvalabs.voxcom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the daemon in its own JVM, as a client would, and checks that nothing but its JSON results reaches standard
+ * output, even when models give warnings as they're read.
+ *
+ * @author John Watkinson
+ */
+public class DaemonTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("voxcom", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void stdoutIsOnlyJson() throws Exception {
+        // A model from a newer version of the format, which is read with a warning
+        VoxModel model = new SceneGenerator(1).generateModel(16, 500, 8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VoxFormat.write(model, bytes);
+        byte[] data = bytes.toByteArray();
+        data[4] = (byte) 151;
+        File voxFile = new File(dir, "newer.vox");
+        FileOutputStream out = new FileOutputStream(voxFile);
+        out.write(data);
+        out.close();
+        File yaml = new File(dir, "scene.yaml");
+        PrintWriter writer = new PrintWriter(yaml, "UTF-8");
+        writer.println("output: \"" + new File(dir, "scene.vox").getPath() + "\"");
+        writer.println("models:");
+        writer.println(" - name: \"" + voxFile.getPath() + "\"");
+        writer.close();
+
+        String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Voxcom.class.getName(), "--daemon");
+        builder.redirectError(new File(dir, "stderr.txt"));
+        Process process = builder.start();
+        Writer in = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        in.write(yaml.getPath() + "\nstats\nquit\n");
+        in.close();
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lines.add(line);
+        }
+        assertEquals(0, process.waitFor());
+
+        assertEquals("Expected accepted, stats and ok lines but got " + lines, 3, lines.size());
+        boolean ok = false;
+        for (String line : lines) {
+            assertTrue("Not JSON: " + line, isJson(line));
+            ok |= line.contains("\"status\": \"ok\"") && line.contains("\"job\"");
+        }
+        assertTrue("The job didn't succeed: " + lines, ok);
+        assertTrue(new File(dir, "scene.vox").exists());
+    }
+
+    @Test
+    public void jobPathsCanContainSpaces() throws IOException {
+        File scene = new File(dir, "my scene.yaml");
+        scene.createNewFile();
+        assertArrayEquals(new String[]{"scene.yaml"}, Daemon.parseJob("scene.yaml"));
+        assertArrayEquals(new String[]{"scene.yaml", "report.json"}, Daemon.parseJob("scene.yaml report.json"));
+        assertArrayEquals(new String[]{scene.getPath()}, Daemon.parseJob(scene.getPath()));
+        assertArrayEquals(new String[]{scene.getPath(), "my report.json"}, Daemon.parseJob(scene.getPath() + "\tmy report.json"));
+        assertArrayEquals(new String[]{scene.getPath(), "report.json"}, Daemon.parseJob(scene.getPath() + " report.json"));
+    }
+
+    /**
+     * @return true if the line is a single JSON value, with nothing after it.
+     */
+    static boolean isJson(String line) {
+        int[] position = {0};
+        return parseValue(line, position) && skipSpace(line, position) == line.length();
+    }
+
+    private static boolean parseValue(String s, int[] p) {
+        int n = skipSpace(s, p);
+        if (n >= s.length()) {
+            return false;
+        }
+        char c = s.charAt(n);
+        if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            p[0]++;
+            if (skipSpace(s, p) < s.length() && s.charAt(p[0]) == close) {
+                p[0]++;
+                return true;
+            }
+            while (true) {
+                if (c == '{') {
+                    if (skipSpace(s, p) >= s.length() || s.charAt(p[0]) != '"' || !parseString(s, p)) {
+                        return false;
+                    }
+                    if (skipSpace(s, p) >= s.length() || s.charAt(p[0]) != ':') {
+                        return false;
+                    }
+                    p[0]++;
+                }
+                if (!parseValue(s, p) || skipSpace(s, p) >= s.length()) {
+                    return false;
+                }
+                char next = s.charAt(p[0]++);
+                if (next == close) {
+                    return true;
+                } else if (next != ',') {
+                    return false;
+                }
+            }
+        } else if (c == '"') {
+            return parseString(s, p);
+        }
+        for (String literal : new String[]{"true", "false", "null"}) {
+            if (s.startsWith(literal, n)) {
+                p[0] += literal.length();
+                return true;
+            }
+        }
+        int end = n;
+        while (end < s.length() && "+-0123456789.eE".indexOf(s.charAt(end)) >= 0) {
+            end++;
+        }
+        try {
+            Double.parseDouble(s.substring(n, end));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        p[0] = end;
+        return true;
+    }
+
+    private static boolean parseString(String s, int[] p) {
+        for (int n = p[0] + 1; n < s.length(); n++) {
+            char c = s.charAt(n);
+            if (c == '\\') {
+                n++;
+            } else if (c == '"') {
+                p[0] = n + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipSpace(String s, int[] p) {
+        while (p[0] < s.length() && Character.isWhitespace(s.charAt(p[0]))) {
+            p[0]++;
+        }
+        return p[0];
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.larvalabs.voxcom;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks each {@link Operation} on small models spanning several bricks, against the same operation done a voxel at a
+ * time.
+ *
+ * @author John Watkinson
+ */
+public class OperationTest {
+
+    // Where the tool's corner lands in the scene, so that its voxel at (x, y, z) lands at (x + 10, y + 12, z + 14)
+    private static final int OFFSET_X = 10, OFFSET_Y = 12, OFFSET_Z = 14;
+
+    @Test
+    public void union() {
+        VoxModel scene = scene();
+        VoxModel tool = tool();
+        List<long[]> before = snapshot(scene);
+        scene.add(tool, placement(Operation.UNION));
+        int added = 0;
+        for (long[] voxel : before) {
+            int tx = (int) voxel[0] - OFFSET_X, ty = (int) voxel[1] - OFFSET_Y, tz = (int) voxel[2] - OFFSET_Z;
+            long color = inTool(tool, tx, ty, tz) ? toolColor(tool, tx, ty, tz) : voxel[3];
+            assertEquals(color, sceneColor(scene, (int) voxel[0], (int) voxel[1], (int) voxel[2]));
+        }
+        for (long[] voxel : snapshot(tool)) {
+            int x = (int) voxel[0] + OFFSET_X, y = (int) voxel[1] + OFFSET_Y, z = (int) voxel[2] + OFFSET_Z;
+            assertEquals(voxel[3], sceneColor(scene, x, y, z));
+            if (!contains(before, x, y, z)) {
+                added++;
+            }
+        }
+        assertEquals(before.size() + added, scene.getVoxels().size());
+    }
+
+    @Test
+    public void subtract() {
+        VoxModel scene = scene();
+        VoxModel tool = tool();
+        List<long[]> expected = new ArrayList<>();
+        for (long[] voxel : snapshot(scene)) {
+            if (!inTool(tool, (int) voxel[0] - OFFSET_X, (int) voxel[1] - OFFSET_Y, (int) voxel[2] - OFFSET_Z)) {
+                expected.add(voxel);
+            }
+        }
+        scene.add(tool, placement(Operation.SUBTRACT));
+        assertSameVoxels(expected, snapshot(scene));
+    }
+
+    @Test
+    public void intersect() {
+        VoxModel scene = scene();
+        VoxModel tool = tool();
+        List<long[]> expected = new ArrayList<>();
+        for (long[] voxel : snapshot(scene)) {
+            if (inTool(tool, (int) voxel[0] - OFFSET_X, (int) voxel[1] - OFFSET_Y, (int) voxel[2] - OFFSET_Z)) {
+                expected.add(voxel);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        scene.add(tool, placement(Operation.INTERSECT));
+        assertSameVoxels(expected, snapshot(scene));
+    }
+
+    @Test
+    public void paint() {
+        VoxModel scene = scene();
+        VoxModel tool = tool();
+        List<long[]> expected = new ArrayList<>();
+        int painted = 0;
+        for (long[] voxel : snapshot(scene)) {
+            int tx = (int) voxel[0] - OFFSET_X, ty = (int) voxel[1] - OFFSET_Y, tz = (int) voxel[2] - OFFSET_Z;
+            if (inTool(tool, tx, ty, tz)) {
+                voxel[3] = toolColor(tool, tx, ty, tz);
+                painted++;
+            }
+            expected.add(voxel);
+        }
+        assertTrue(painted > 0);
+        scene.add(tool, placement(Operation.PAINT));
+        assertSameVoxels(expected, snapshot(scene));
+    }
+
+    @Test
+    public void parallelMatchesSerial() throws InterruptedException {
+        Operation[] operations = {Operation.UNION, Operation.UNION, Operation.SUBTRACT, Operation.UNION, Operation.PAINT, Operation.INTERSECT, Operation.UNION};
+        VoxModel tool = tool();
+        List<VoxModel> models = new ArrayList<>();
+        List<Placement> placements = new ArrayList<>();
+        VoxModel serial = scene();
+        for (int n = 0; n < operations.length; n++) {
+            Placement placement = placement(operations[n]);
+            placement.x += n * 3;
+            placement.rotateZ = n % 4 * 90;
+            models.add(tool);
+            placements.add(placement);
+            serial.add(tool, placement);
+        }
+        VoxModel parallel = scene();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallel.addAll(models, placements, pool);
+        } finally {
+            pool.shutdown();
+        }
+        assertSameVoxels(snapshot(serial), snapshot(parallel));
+    }
+
+    /**
+     * @return a scene of random voxels in a 48 x 48 x 48 box, so that it spans several bricks.
+     */
+    private static VoxModel scene() {
+        return randomModel(new Random(1), 48, 3000, 1);
+    }
+
+    /**
+     * @return a 20 x 20 x 20 model of random voxels, with colors of its own.
+     */
+    private static VoxModel tool() {
+        return randomModel(new Random(2), 20, 2000, 2);
+    }
+
+    private static VoxModel randomModel(Random random, int size, int numVoxels, int colorSeed) {
+        VoxModel model = new VoxModel(size, size, size);
+        Random colors = new Random(colorSeed);
+        for (int i = 1; i < 256; i++) {
+            model.setColor(i, colors.nextInt() | 0xFF000000);
+        }
+        for (int n = 0; n < numVoxels; n++) {
+            model.addVoxel(random.nextInt(size), random.nextInt(size), random.nextInt(size), 1 + random.nextInt(16));
+        }
+        return model;
+    }
+
+    private static Placement placement(Operation operation) {
+        Placement placement = new Placement(OFFSET_X, OFFSET_Y, OFFSET_Z);
+        placement.operation = operation;
+        return placement;
+    }
+
+    private static boolean inTool(VoxModel tool, int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < tool.getSizeX() && y < tool.getSizeY() && z < tool.getSizeZ() && tool.isSet(x, y, z);
+    }
+
+    private static long toolColor(VoxModel tool, int x, int y, int z) {
+        return tool.getPalette().getColor(tool.get(x, y, z));
+    }
+
+    private static long sceneColor(VoxModel scene, int x, int y, int z) {
+        return scene.getPalette().getColor(scene.get(x, y, z));
+    }
+
+    /**
+     * @return each voxel of the model, in order, as its coordinates and its color.
+     */
+    private static List<long[]> snapshot(VoxModel model) {
+        List<long[]> voxels = new ArrayList<>();
+        for (int n = 0; n < model.getVoxels().size(); n++) {
+            long voxel = model.getVoxels().get(n);
+            voxels.add(new long[]{VoxelBuffer.x(voxel), VoxelBuffer.y(voxel), VoxelBuffer.z(voxel), model.getPalette().getColor(VoxelBuffer.i(voxel))});
+        }
+        return voxels;
+    }
+
+    private static boolean contains(List<long[]> voxels, int x, int y, int z) {
+        for (long[] voxel : voxels) {
+            if (voxel[0] == x && voxel[1] == y && voxel[2] == z) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertSameVoxels(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int n = 0; n < expected.size(); n++) {
+            assertArrayEquals("Voxel " + n + " was " + Arrays.toString(actual.get(n)), expected.get(n), actual.get(n));
+        }
+    }
+
+}
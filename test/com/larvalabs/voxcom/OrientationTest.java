@@ -0,0 +1,167 @@
+package com.larvalabs.voxcom;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that placing voxels through the orientation tables gives the same result as the rotation matrix that Voxcom
+ * used before, for every combination of flips and rotations.
+ *
+ * @author John Watkinson
+ */
+public class OrientationTest {
+
+    private static final int MAX_SIZE = 64;
+
+    private static final int[] NO_REMAP = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            NO_REMAP[i] = i;
+        }
+    }
+
+    @Test
+    public void flipsAndRotationsGiveAll48Orientations() {
+        HashSet<Integer> orientations = new HashSet<>();
+        for (Placement placement : allPlacements(0, 0, 0, false, false, false)) {
+            orientations.add(Orientation.of(placement).getIndex());
+        }
+        assertEquals(48, orientations.size());
+    }
+
+    @Test
+    public void tablesMatchMatrix() {
+        VoxModel model = randomModel(5, 7, 9, 150);
+        // Fractional positions, and some placed partly below zero so that voxels are dropped there
+        float[][] positions = {{20, 20, 20}, {10.5f, 20.25f, 3.75f}, {-2.5f, 1, 0.5f}, {60, 61.5f, 0}};
+        for (float[] position : positions) {
+            for (int centers = 0; centers < 8; centers++) {
+                for (Placement placement : allPlacements(position[0], position[1], position[2], (centers & 1) != 0, (centers & 2) != 0, (centers & 4) != 0)) {
+                    assertSameVoxels(placement, matrixTransform(model, placement), tableTransform(model, placement));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void scaledTablesMatchScaledModel() {
+        VoxModel model = randomModel(4, 3, 5, 30);
+        for (int scale = 2; scale <= 3; scale++) {
+            // A copy of the model, scaled before it's placed, as Voxcom did before scaling was part of the transform
+            VoxModel scaled = VoxModel.fromUniqueVoxels(model.getSizeX(), model.getSizeY(), model.getSizeZ(), model.getPalette(), model.getVoxels().translate(0, 0, 0));
+            scaled.setMaxSize(MAX_SIZE);
+            scaled.scale(scale);
+            for (Placement placement : allPlacements(8.5f, 3, 12.25f, false, true, false)) {
+                placement.scale = scale;
+                Placement unscaled = new Placement(placement);
+                unscaled.scale = 1;
+                assertSameVoxels(placement, matrixTransform(scaled, unscaled), tableTransform(model, placement));
+            }
+        }
+    }
+
+    /**
+     * @return a placement for each combination of flips and of rotations by multiples of 90 degrees about each axis.
+     */
+    private static Placement[] allPlacements(float x, float y, float z, boolean centerX, boolean centerY, boolean centerZ) {
+        Placement[] placements = new Placement[8 * 64];
+        int n = 0;
+        for (int flips = 0; flips < 8; flips++) {
+            for (int rx = 0; rx < 360; rx += 90) {
+                for (int ry = 0; ry < 360; ry += 90) {
+                    for (int rz = 0; rz < 360; rz += 90) {
+                        placements[n++] = new Placement(x, y, z, centerX, centerY, centerZ, (flips & 1) != 0, (flips & 2) != 0, (flips & 4) != 0, rx, ry, rz);
+                    }
+                }
+            }
+        }
+        return placements;
+    }
+
+    private static VoxModel randomModel(int sizeX, int sizeY, int sizeZ, int numVoxels) {
+        Random random = new Random(sizeX * 31 + sizeY * 7 + sizeZ);
+        VoxModel model = new VoxModel(sizeX, sizeY, sizeZ);
+        for (int n = 0; n < numVoxels; n++) {
+            model.addVoxel(random.nextInt(sizeX), random.nextInt(sizeY), random.nextInt(sizeZ), 1 + random.nextInt(255));
+        }
+        return model;
+    }
+
+    private static VoxelBuffer tableTransform(VoxModel model, Placement placement) {
+        VoxelBuffer out = new VoxelBuffer();
+        new InstanceTransform(model, placement, MAX_SIZE).apply(model.getVoxels(), 0, model.getVoxels().size(), NO_REMAP, out);
+        return out;
+    }
+
+    /**
+     * The placement as Voxcom computed it before the orientation tables, with a float rotation matrix.
+     */
+    private static VoxelBuffer matrixTransform(VoxModel model, Placement p) {
+        int rotateX = p.rotateX, rotateY = p.rotateY, rotateZ = p.rotateZ;
+        float[][] rot = new float[3][3];
+        rot[0][0] = cos(rotateY) * cos(rotateZ);
+        rot[0][1] = cos(rotateZ) * sin(rotateX) * sin(rotateY) - cos(rotateX) * sin(rotateZ);
+        rot[0][2] = cos(rotateX) * cos(rotateZ) * sin(rotateY) + sin(rotateX) * sin(rotateZ);
+        rot[1][0] = cos(rotateY) * sin(rotateZ);
+        rot[1][1] = cos(rotateX) * cos(rotateZ) + sin(rotateX) * sin(rotateY) * sin(rotateZ);
+        rot[1][2] = cos(rotateX) * sin(rotateY) * sin(rotateZ) - cos(rotateZ) * sin(rotateX);
+        rot[2][0] = -sin(rotateY);
+        rot[2][1] = cos(rotateY) * sin(rotateX);
+        rot[2][2] = cos(rotateX) * cos(rotateY);
+        int sizeX = model.getSizeX(), sizeY = model.getSizeY(), sizeZ = model.getSizeZ();
+        VoxelBuffer voxels = model.getVoxels();
+        VoxelBuffer out = new VoxelBuffer();
+        for (int n = 0; n < voxels.size(); n++) {
+            long voxel = voxels.get(n);
+            int vx = p.flipX ? sizeX - VoxelBuffer.x(voxel) - 1 : VoxelBuffer.x(voxel);
+            int vy = p.flipY ? sizeY - VoxelBuffer.y(voxel) - 1 : VoxelBuffer.y(voxel);
+            int vz = p.flipZ ? sizeZ - VoxelBuffer.z(voxel) - 1 : VoxelBuffer.z(voxel);
+            float fx = vx - sizeX / 2f;
+            float fy = vy - sizeY / 2f;
+            float fz = vz - sizeZ / 2f;
+            int rx = (int) (rot[0][0] * fx + rot[0][1] * fy + rot[0][2] * fz + (p.centerX ? 1 : sizeX / 2f) + p.x);
+            int ry = (int) (rot[1][0] * fx + rot[1][1] * fy + rot[1][2] * fz + (p.centerY ? 1 : sizeY / 2f) + p.y);
+            int rz = (int) (rot[2][0] * fx + rot[2][1] * fy + rot[2][2] * fz + (p.centerZ ? 1 : sizeZ / 2f) + p.z);
+            if (rx >= 0 && rx <= MAX_SIZE && ry >= 0 && ry <= MAX_SIZE && rz >= 0 && rz <= MAX_SIZE) {
+                out.add(rx, ry, rz, VoxelBuffer.i(voxel));
+            }
+        }
+        return out;
+    }
+
+    private static int sin(int angle) {
+        switch (angle) {
+            case 90:
+                return 1;
+            case 270:
+                return -1;
+        }
+        return 0;
+    }
+
+    private static int cos(int angle) {
+        switch (angle) {
+            case 90:
+            case 270:
+                return 0;
+            case 180:
+                return -1;
+        }
+        return 1;
+    }
+
+    private static void assertSameVoxels(Placement p, VoxelBuffer expected, VoxelBuffer actual) {
+        String placement = "flips " + p.flipX + " " + p.flipY + " " + p.flipZ + ", rotations " + p.rotateX + " " + p.rotateY + " " + p.rotateZ
+                + ", centers " + p.centerX + " " + p.centerY + " " + p.centerZ + " at " + p.x + " " + p.y + " " + p.z;
+        assertEquals("Voxel count for " + placement, expected.size(), actual.size());
+        for (int n = 0; n < expected.size(); n++) {
+            assertEquals("Voxel " + n + " for " + placement, expected.get(n), actual.get(n));
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.larvalabs.voxcom;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how models are decoded from the chunks of a .vox file.
+ *
+ * @author John Watkinson
+ */
+public class VoxFileTest {
+
+    @Test
+    public void uniqueVoxelsAreKeptInOrder() throws IOException {
+        VoxModel model = new VoxFile(voxFile(new int[][]{{0, 0, 0, 1}, {1, 0, 0, 2}, {0, 3, 2, 3}})).getModel(0);
+        VoxelBuffer voxels = model.getVoxels();
+        assertEquals(3, voxels.size());
+        assertEquals(VoxelBuffer.pack(0, 0, 0, 1), voxels.get(0));
+        assertEquals(VoxelBuffer.pack(1, 0, 0, 2), voxels.get(1));
+        assertEquals(VoxelBuffer.pack(0, 3, 2, 3), voxels.get(2));
+    }
+
+    @Test
+    public void repeatedPositionsKeepTheLastVoxel() throws IOException {
+        // As written by versions of Voxcom that didn't deduplicate composited models
+        VoxModel model = new VoxFile(voxFile(new int[][]{
+                {0, 0, 0, 1}, {5, 6, 7, 2}, {0, 0, 0, 3}, {9, 9, 9, 4}, {5, 6, 7, 5}, {0, 0, 0, 6}})).getModel(0);
+        assertEquals(3, model.getVoxels().size());
+        assertEquals(6, model.get(0, 0, 0));
+        assertEquals(5, model.get(5, 6, 7));
+        assertEquals(4, model.get(9, 9, 9));
+
+        // Later changes replace the one remaining voxel at a position
+        model.addVoxel(5, 6, 7, 8);
+        assertEquals(3, model.getVoxels().size());
+        assertEquals(8, model.get(5, 6, 7));
+    }
+
+    /**
+     * @return a .vox file holding one 16 x 16 x 16 model with the given voxels, each as x, y, z and palette index.
+     */
+    private static ByteBuffer voxFile(int[][] voxels) {
+        int sizeChunk = 12 + 12;
+        int voxelChunk = 12 + 4 + 4 * voxels.length;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 12 + sizeChunk + voxelChunk).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("VOX ".getBytes(StandardCharsets.US_ASCII)).putInt(VoxFormat.VERSION);
+        buffer.put("MAIN".getBytes(StandardCharsets.US_ASCII)).putInt(0).putInt(sizeChunk + voxelChunk);
+        buffer.put("SIZE".getBytes(StandardCharsets.US_ASCII)).putInt(12).putInt(0);
+        buffer.putInt(16).putInt(16).putInt(16);
+        buffer.put("XYZI".getBytes(StandardCharsets.US_ASCII)).putInt(4 + 4 * voxels.length).putInt(0);
+        buffer.putInt(voxels.length);
+        for (int[] voxel : voxels) {
+            buffer.put((byte) voxel[0]).put((byte) voxel[1]).put((byte) voxel[2]).put((byte) voxel[3]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+}